@@ -0,0 +1,79 @@
+import server.AtomicFileWriter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/*
+ * Misura il throughput di AtomicFileWriter con e senza il raggruppamento degli fsync. turing.syncLatency viene letta
+ * una volta sola, quindi ogni configurazione viene eseguita in una JVM separata: con turing.syncLatency=0 ogni
+ * scrittura esegue i propri fsync, con il valore predefinito (2 ms) le scritture concorrenti li condividono.
+ * Ogni thread scrive file diversi, così il risultato non dipende dall'unione di più scritture dello stesso file.
+ * Sotto ogni risultato vengono riportate le statistiche di AtomicFileWriter, con il numero di fsync e di flush.
+ *
+ * Uso: eseguire in una directory sul disco da misurare, dove vengono creati e poi cancellati i file di prova
+ *     java AtomicWriteBench [scritture per thread]
+ */
+public class AtomicWriteBench {
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("run")) {
+            run(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+        int writes = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        String java = ProcessHandle.current().info().command().orElse("java");
+        String classpath = System.getProperty("java.class.path");
+        System.out.printf("%-12s %8s %12s%n", "syncLatency", "threads", "writes/s");
+        for (String latency : new String[]{"0", "2"}) {
+            for (int threads : new int[]{1, 4, 16}) {
+                Process child = new ProcessBuilder(java, "-Dturing.syncLatency=" + latency, "-cp", classpath,
+                        AtomicWriteBench.class.getName(), "run", Integer.toString(threads), Integer.toString(writes))
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start();
+                try (BufferedReader out = new BufferedReader(new InputStreamReader(child.getInputStream(), StandardCharsets.UTF_8))) {
+                    System.out.printf("%-12s %8d %12s%n", latency + " ms", threads, out.readLine());
+                    System.out.println("    " + out.readLine());
+                }
+                child.waitFor();
+            }
+        }
+    }
+
+    // Eseguito nella JVM figlia: threads thread scrivono ciascuno writes file
+    private static void run(int threads, int writes) throws Exception {
+        AtomicFileWriter writer = AtomicFileWriter.getInstance();
+        Path dir = Files.createTempDirectory(Paths.get("."), "atomic-write-bench");
+        byte[] text = "Nel mezzo del cammin di nostra vita mi ritrovai per una selva oscura.\n".repeat(30)
+                .getBytes(StandardCharsets.UTF_8);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            workers.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < writes; i++)
+                        writer.write(dir.resolve(id + "_" + i + ".txt"), text);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers)
+            worker.start();
+        for (Thread worker : workers)
+            worker.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%.0f%n%s%n", threads * writes / seconds, writer);
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
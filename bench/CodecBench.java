@@ -0,0 +1,88 @@
+import exceptions.InvalidSessionException;
+import protocol.BinaryCodec;
+import protocol.Codec;
+import protocol.DocumentUri;
+import protocol.Message;
+import protocol.SerializationCodec;
+import protocol.request.EditRequest;
+import protocol.request.EndEditRequest;
+import protocol.request.ListDocumentsRequest;
+import protocol.request.LoginRequest;
+import protocol.response.AckResponse;
+import protocol.response.ExceptionResponse;
+import protocol.response.LoginResponse;
+import protocol.response.SectionChunkResponse;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Confronta la serializzazione Java (un ObjectOutputStream nuovo per ogni messaggio, come faceva Message.send) con la
+ * codifica binaria di BinaryCodec. Per ogni messaggio rappresentativo riporta la dimensione codificata, il tempo di
+ * una codifica seguita dalla decodifica e i byte allocati per ciascuna.
+ *
+ * Uso: java CodecBench [iterazioni]
+ */
+public class CodecBench {
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        long session = 0x5eed_cafe_f00dL;
+        DocumentUri section = new DocumentUri("alice1", "relazione", 3);
+
+        Map<String, Message> messages = new LinkedHashMap<>();
+        LoginRequest login = new LoginRequest("alice1", "password1");
+        messages.put("LoginRequest", login);
+        messages.put("LoginResponse", new LoginResponse(session));
+        messages.put("ListDocumentsRequest", new ListDocumentsRequest(session));
+        messages.put("EditRequest", new EditRequest(session, section));
+        messages.put("AckResponse", new AckResponse(login));
+        messages.put("ExceptionResponse", new ExceptionResponse(new InvalidSessionException()));
+        messages.put("EndEditRequest 4 KiB", new EndEditRequest(session, section, prose(4 * 1024)));
+        messages.put("SectionChunk 64 KiB", new SectionChunkResponse(section, prose(64 * 1024)));
+
+        Codec[] codecs = {new SerializationCodec(), new BinaryCodec()};
+        System.out.printf("%-22s %-20s %8s %10s %12s%n", "message", "codec", "bytes", "ns/op", "alloc B/op");
+        for (Map.Entry<String, Message> entry : messages.entrySet()) {
+            for (Codec codec : codecs) {
+                Message msg = entry.getValue();
+                int size = codec.encode(msg).length;
+                // le iterazioni dei messaggi grandi vengono ridotte in proporzione alla dimensione
+                int n = Math.max(1000, iterations / Math.max(1, size / 256));
+                // riscaldamento, perché il JIT compili il percorso misurato
+                roundTrips(codec, msg, n);
+                long allocated = allocatedBytes();
+                long start = System.nanoTime();
+                roundTrips(codec, msg, n);
+                long nanos = System.nanoTime() - start;
+                allocated = allocatedBytes() - allocated;
+                System.out.printf("%-22s %-20s %8d %10d %12d%n", entry.getKey(), codec.getClass().getSimpleName(),
+                        size, nanos / n, allocated / n);
+            }
+        }
+    }
+
+    private static void roundTrips(Codec codec, Message msg, int n) throws Exception {
+        for (int i = 0; i < n; i++) {
+            if (codec.decode(codec.encode(msg)) == null)
+                throw new AssertionError();
+        }
+    }
+
+    private static long allocatedBytes() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // Testo in prosa italiana di circa length byte in UTF-8
+    static byte[] prose(int length) {
+        StringBuilder text = new StringBuilder(length);
+        while (text.length() < length)
+            text.append("Nel mezzo del cammin di nostra vita mi ritrovai per una selva oscura, ché la diritta via era smarrita. ");
+        text.setLength(length);
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
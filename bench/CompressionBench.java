@@ -0,0 +1,88 @@
+import protocol.BinaryCodec;
+import protocol.Codec;
+import protocol.CompressingCodec;
+import protocol.DocumentUri;
+import protocol.Message;
+import protocol.request.EndEditRequest;
+import protocol.request.ListDocumentsRequest;
+import protocol.response.SectionChunkResponse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/*
+ * Misura l'effetto della compressione negoziata (CompressingCodec) rispetto alla codifica binaria senza compressione
+ * su messaggi che trasportano il testo di una sezione, di dimensioni rappresentative. Per ogni messaggio riporta i
+ * byte sulla connessione e il tempo di CPU per codificarlo e decodificarlo. Il testo è generato scegliendo a caso
+ * parole da un vocabolario, perché la ripetizione di una sola frase si comprimerebbe molto meglio di un testo reale.
+ *
+ * Uso: java CompressionBench [iterazioni]
+ */
+public class CompressionBench {
+    private static final String[] WORDS = ("il la di che e a un una per in con non si da come più ma anche sono era " +
+            "questo quella tempo casa città mondo vita giorno notte anno parte modo cosa uomo donna paese lavoro " +
+            "progetto rete server client documento sezione utente modifica testo scrivere leggere inviare ricevere " +
+            "connessione richiesta risposta messaggio protocollo dati sempre ancora molto poco grande piccolo nuovo " +
+            "vecchio primo ultimo bene male quando dove perché mentre dopo prima senza verso sopra sotto").split(" ");
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        DocumentUri section = new DocumentUri("alice1", "relazione", 3);
+        Codec plain = new BinaryCodec();
+        Codec compressing = new CompressingCodec();
+        // riscaldamento dei due codec, perché il JIT non penalizzi i primi messaggi misurati
+        Message warmUp = new EndEditRequest(42, section, prose(4 * 1024, 0));
+        roundTripMicros(plain, warmUp, iterations / 4);
+        roundTripMicros(compressing, warmUp, iterations / 4);
+
+        System.out.printf("%-26s %9s %9s %7s %12s %12s%n", "message", "plain B", "wire B", "ratio",
+                "plain us/op", "deflate us/op");
+        report("ListDocumentsRequest", new ListDocumentsRequest(42), plain, compressing, iterations);
+        for (int size : new int[]{512, 4 * 1024, 64 * 1024, 1024 * 1024}) {
+            byte[] text = prose(size, size);
+            report("EndEditRequest " + label(size), new EndEditRequest(42, section, text), plain, compressing, iterations);
+            report("SectionChunk " + label(size), new SectionChunkResponse(section, text), plain, compressing, iterations);
+        }
+    }
+
+    private static void report(String name, Message msg, Codec plain, Codec compressing, int iterations) throws Exception {
+        int plainSize = plain.encode(msg).length;
+        int wireSize = compressing.encode(msg).length;
+        // le iterazioni dei messaggi grandi vengono ridotte in proporzione alla dimensione
+        int n = Math.max(20, iterations / Math.max(1, plainSize / 1024));
+        double plainMicros = roundTripMicros(plain, msg, n);
+        double compressingMicros = roundTripMicros(compressing, msg, n);
+        System.out.printf("%-26s %9d %9d %6.2fx %12.1f %12.1f%n", name, plainSize, wireSize,
+                plainSize / (double) wireSize, plainMicros, compressingMicros);
+    }
+
+    // Tempo medio di una codifica seguita dalla decodifica, dopo un riscaldamento
+    private static double roundTripMicros(Codec codec, Message msg, int n) throws Exception {
+        for (int round = 0; ; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                if (codec.decode(codec.encode(msg)) == null)
+                    throw new AssertionError();
+            }
+            if (round == 1)
+                return (System.nanoTime() - start) / 1000.0 / n;
+        }
+    }
+
+    private static String label(int size) {
+        return size >= 1024 ? size / 1024 + " KiB" : size + " B";
+    }
+
+    // Circa length byte di parole scelte a caso, con punteggiatura e a capo ogni tanto
+    static byte[] prose(int length, long seed) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder(length);
+        while (text.length() < length) {
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+            int r = random.nextInt(20);
+            text.append(r == 0 ? ".\n" : r < 3 ? ", " : " ");
+        }
+        text.setLength(length);
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
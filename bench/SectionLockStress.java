@@ -0,0 +1,201 @@
+import exceptions.DocumentSectionLockedException;
+import exceptions.ProtocolException;
+import exceptions.UserAlreadyEditingException;
+import server.Document;
+import server.DocumentSection;
+import server.User;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Stress test, sul modello di jcstress, delle invarianti del blocco delle sezioni (Document.lockSection e
+ * releaseSection), che usa due compare-and-set senza lock del documento:
+ * - stessa sezione: due utenti tentano insieme di bloccare una sezione libera. Deve riuscire esattamente uno dei due;
+ * - stesso utente: due thread dello stesso utente tentano insieme di bloccare due sezioni diverse. Deve riuscire
+ *   esattamente uno dei due, l'altro riceve UserAlreadyEditingException;
+ * - carico misto: molti utenti bloccano e rilasciano sezioni a caso. Una sezione non deve mai avere due editor, e
+ *   alla fine nessuna sezione deve restare bloccata e nessun utente deve risultare in modifica.
+ * Per i primi due casi viene stampato l'istogramma dei risultati osservati, come fa jcstress; il programma termina
+ * con codice 1 se una delle invarianti è stata violata.
+ *
+ * Uso: eseguire in una directory vuota, perché il documento di prova viene creato in Turing/
+ *     java SectionLockStress [prove]
+ */
+public class SectionLockStress {
+    private static final int SECTIONS = 8;
+
+    private static boolean failed = false;
+
+    public static void main(String[] args) throws Exception {
+        int trials = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        User owner = new User("stressowner", "hashedpassword");
+        Document document = owner.createDocument("stress" + System.nanoTime(), SECTIONS);
+
+        sameSection(document, trials);
+        sameUser(document, trials);
+        mixedLoad(document, trials * 10);
+        System.exit(failed ? 1 : 0);
+    }
+
+    // Due utenti diversi tentano di bloccare la stessa sezione
+    private static void sameSection(Document document, int trials) throws Exception {
+        User[] users = {new User("stressuser1", "hashedpassword"), new User("stressuser2", "hashedpassword")};
+        Map<String, Integer> outcomes = race(trials, trial -> {
+            int section = trial % SECTIONS;
+            return (actor) -> {
+                try {
+                    document.lockSection(users[actor], section);
+                    return true;
+                } catch (DocumentSectionLockedException e) {
+                    return false;
+                }
+            };
+        }, (trial, won) -> {
+            for (int actor = 0; actor < 2; actor++) {
+                if (won[actor])
+                    document.releaseSection(users[actor], trial % SECTIONS);
+            }
+        });
+        report("same section, two users", outcomes, "one");
+    }
+
+    // Lo stesso utente tenta di bloccare due sezioni diverse
+    private static void sameUser(Document document, int trials) throws Exception {
+        User user = new User("stressuser3", "hashedpassword");
+        Map<String, Integer> outcomes = race(trials, trial -> (actor) -> {
+            try {
+                document.lockSection(user, (trial + actor) % SECTIONS);
+                return true;
+            } catch (UserAlreadyEditingException e) {
+                return false;
+            }
+        }, (trial, won) -> {
+            for (int actor = 0; actor < 2; actor++) {
+                if (won[actor])
+                    document.releaseSection(user, (trial + actor) % SECTIONS);
+            }
+        });
+        report("same user, two sections", outcomes, "one");
+    }
+
+    // Molti utenti bloccano e rilasciano sezioni a caso; holders conta gli editor di ogni sezione
+    private static void mixedLoad(Document document, int operations) throws Exception {
+        int threads = 16;
+        User[] users = new User[threads];
+        for (int i = 0; i < threads; i++)
+            users[i] = new User("stressmixed" + i, "hashedpassword");
+        AtomicInteger[] holders = new AtomicInteger[SECTIONS];
+        for (int i = 0; i < SECTIONS; i++)
+            holders[i] = new AtomicInteger();
+        AtomicLong locked = new AtomicLong();
+        AtomicLong violations = new AtomicLong();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            User user = users[t];
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < operations / threads; i++) {
+                    int section = random.nextInt(SECTIONS);
+                    try {
+                        document.lockSection(user, section);
+                    } catch (ProtocolException e) {
+                        continue;
+                    }
+                    if (holders[section].incrementAndGet() != 1)
+                        violations.incrementAndGet();
+                    holders[section].decrementAndGet();
+                    try {
+                        document.releaseSection(user, section);
+                        locked.incrementAndGet();
+                    } catch (ProtocolException e) {
+                        violations.incrementAndGet();
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+        int stillLocked = 0;
+        for (int i = 0; i < SECTIONS; i++) {
+            if (document.getSection(i).isLocked())
+                stillLocked++;
+        }
+        int stillEditing = 0;
+        for (User user : users) {
+            if (user.isEditing())
+                stillEditing++;
+        }
+        boolean ok = violations.get() == 0 && stillLocked == 0 && stillEditing == 0;
+        failed |= !ok;
+        System.out.printf("mixed load, %d threads: %d locks, %d violations, %d sections still locked, %d users still editing: %s%n",
+                threads, locked.get(), violations.get(), stillLocked, stillEditing, ok ? "OK" : "FAILED");
+    }
+
+    private interface Actor {
+        boolean run(int actor) throws ProtocolException;
+    }
+
+    private interface Trial {
+        Actor prepare(int trial);
+    }
+
+    private interface Cleanup {
+        void run(int trial, boolean[] won) throws ProtocolException;
+    }
+
+    // Esegue trials prove in cui due thread eseguono insieme l'Actor della prova; una barriera li fa partire insieme.
+    // Restituisce quante volte nessuno, uno solo o entrambi gli attori sono riusciti
+    private static Map<String, Integer> race(int trials, Trial trial, Cleanup cleanup) throws Exception {
+        boolean[] won = new boolean[2];
+        Actor[] current = new Actor[1];
+        Map<String, Integer> outcomes = new TreeMap<>();
+        int[] index = new int[1];
+        // la barriera di fine prova registra il risultato, rilascia le sezioni e prepara la prova successiva
+        CyclicBarrier end = new CyclicBarrier(2, () -> {
+            int winners = (won[0] ? 1 : 0) + (won[1] ? 1 : 0);
+            outcomes.merge(winners == 0 ? "none" : winners == 1 ? "one" : "both", 1, Integer::sum);
+            try {
+                cleanup.run(index[0], won);
+            } catch (ProtocolException e) {
+                outcomes.merge("cleanup failed", 1, Integer::sum);
+            }
+            index[0]++;
+            current[0] = index[0] < trials ? trial.prepare(index[0]) : null;
+        });
+        current[0] = trial.prepare(0);
+        Thread[] actors = new Thread[2];
+        for (int a = 0; a < 2; a++) {
+            int actor = a;
+            actors[a] = new Thread(() -> {
+                try {
+                    while (current[0] != null) {
+                        try {
+                            won[actor] = current[0].run(actor);
+                        } catch (ProtocolException e) {
+                            won[actor] = false;
+                        }
+                        end.await();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            actors[a].start();
+        }
+        for (Thread actor : actors)
+            actor.join();
+        return outcomes;
+    }
+
+    private static void report(String name, Map<String, Integer> outcomes, String expected) {
+        boolean ok = outcomes.size() == 1 && outcomes.containsKey(expected);
+        failed |= !ok;
+        System.out.printf("%s: %s %s%n", name, outcomes, ok ? "OK" : "FAILED");
+    }
+}
@@ -0,0 +1,127 @@
+import protocol.BinaryCodec;
+import protocol.DocumentUri;
+import server.DocumentSection;
+import server.PermanentStorage;
+import server.Storage;
+import server.User;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Confronta il testo delle sezioni tenuto come byte[] UTF-8 con la rappresentazione precedente come String, su testo
+ * latino, latino con qualche carattere fuori da Latin-1 (che obbliga String ad usare UTF-16) e cinese.
+ * - memoria: heap occupato da 2000 sezioni caricate da Storage, contro lo stesso testo tenuto in String;
+ * - allocazione per richiesta: la decodifica e le codifiche che una modifica seguita da un invio richiedeva con String
+ *   (testo ricevuto, riscritto su disco e inviato), contro la lettura e la scrittura dei byte. Viene misurato anche
+ *   il percorso reale attuale: DocumentSection.setText, che scrive nel WriteAheadLog, seguito da writeText.
+ *
+ * Uso: eseguire in una directory vuota, perché le sezioni vengono create in Turing/. Con il collector seriale la
+ * memoria occupata misurata dopo System.gc è precisa, con G1 può variare di qualche KiB per sezione
+ *     java -XX:+UseSerialGC SectionTextBench
+ */
+public class SectionTextBench {
+    private static final int SECTIONS = 2000;
+    private static final int OPERATIONS = 2000;
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        System.out.printf("%-7s %7s %14s %14s %16s %16s %16s%n", "text", "chars", "String B/sect", "byte[] B/sect",
+                "String B/op", "byte[] B/op", "setText+send B/op");
+        for (String kind : new String[]{"latin", "euro", "cjk"})
+            run(kind);
+        System.exit(0);
+    }
+
+    private static void run(String kind) throws Exception {
+        String body = text(kind);
+        Storage storage = PermanentStorage.get();
+        DocumentSection[] sections = new DocumentSection[SECTIONS];
+        String[] strings = new String[SECTIONS];
+        for (int i = 0; i < SECTIONS; i++) {
+            DocumentUri uri = new DocumentUri("benchuser", kind + i / 10, i % 10);
+            storage.write(PermanentStorage.key(uri), (i + body).getBytes(StandardCharsets.UTF_8));
+            sections[i] = DocumentSection.lazy(uri);
+        }
+
+        // heap occupato dal testo: prima come String, decodificato dagli stessi file, poi come byte[]
+        long before = usedMemory();
+        for (int i = 0; i < SECTIONS; i++)
+            strings[i] = new String(storage.read(PermanentStorage.key(sections[i].getUri())), StandardCharsets.UTF_8);
+        long stringHeap = usedMemory() - before;
+        strings = null;
+        before = usedMemory();
+        for (DocumentSection section : sections)
+            section.getBytes();
+        long bytesHeap = usedMemory() - before;
+
+        // un EndEditRequest con il nuovo testo, seguito dall'invio della sezione
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        BinaryCodec.writeString(new DataOutputStream(wire), "x" + body);
+        byte[] frame = wire.toByteArray();
+        DataOutputStream sink = new DataOutputStream(OutputStream.nullOutputStream());
+        long stringOp = 0, bytesOp = 0, realOp = 0;
+        User editor = new User("benchuser", "hashedpassword");
+        // due giri: il primo serve da riscaldamento
+        for (int round = 0; round < 2; round++) {
+            long start = allocatedBytes();
+            for (int i = 0; i < OPERATIONS; i++) {
+                String text = BinaryCodec.readString(new DataInputStream(new ByteArrayInputStream(frame)));
+                sink.write(text.getBytes(StandardCharsets.UTF_8));
+                BinaryCodec.writeString(sink, text);
+            }
+            stringOp = (allocatedBytes() - start) / OPERATIONS;
+
+            start = allocatedBytes();
+            for (int i = 0; i < OPERATIONS; i++) {
+                byte[] text = BinaryCodec.readBytes(new DataInputStream(new ByteArrayInputStream(frame)));
+                sink.write(text);
+                BinaryCodec.writeBytes(sink, text);
+            }
+            bytesOp = (allocatedBytes() - start) / OPERATIONS;
+
+            start = allocatedBytes();
+            for (int i = 0; i < OPERATIONS; i++) {
+                DocumentSection section = sections[i % SECTIONS];
+                section.lock(editor);
+                section.setText(editor, BinaryCodec.readBytes(new DataInputStream(new ByteArrayInputStream(frame))));
+                section.writeText(sink);
+                section.unlock(editor);
+            }
+            realOp = (allocatedBytes() - start) / OPERATIONS;
+        }
+        System.out.printf("%-7s %7d %14d %14d %16d %16d %16d%n", kind, body.length(), stringHeap / SECTIONS,
+                bytesHeap / SECTIONS, stringOp, bytesOp, realOp);
+    }
+
+    // Circa 4000 caratteri del tipo richiesto
+    private static String text(String kind) {
+        StringBuilder text = new StringBuilder();
+        String sentence = kind.equals("cjk") ? "天地玄黄宇宙洪荒日月盈昃辰宿列张"
+                : "Nel mezzo del cammin di nostra vita mi ritrovai per una selva oscura. ";
+        while (text.length() < 4000)
+            text.append(sentence);
+        // un solo carattere fuori da Latin-1 basta perché String usi due byte per ogni carattere
+        if (kind.equals("euro"))
+            text.append("Prezzo: 10 €.");
+        return text.toString();
+    }
+
+    private static long allocatedBytes() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
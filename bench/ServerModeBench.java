@@ -0,0 +1,135 @@
+import exceptions.DuplicateUsernameException;
+import exceptions.TooManyRequestsException;
+import protocol.RmiRegisterUser;
+import protocol.SocketConnection;
+import protocol.request.ListDocumentsRequest;
+import protocol.request.LoginRequest;
+import protocol.response.ExceptionResponse;
+import protocol.response.LoginResponse;
+import protocol.response.Response;
+import server.Server;
+
+import java.net.Socket;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Confronta le modalità del server TCP ("threads", con il pool di 16 thread, e "virtual") aprendo molte connessioni
+ * contemporanee. La prova ha due fasi: prima tutti i client si connettono ed eseguono il login (ripetendolo se il
+ * server lo rifiuta perché sovraccarico), poi quelli che sono riusciti ad entrare inviano ListDocumentsRequest una
+ * dopo l'altra per la durata della misura. Vengono riportati i client serviti, il throughput e le latenze.
+ * Con la modalità "threads" ogni connessione occupa un thread del pool finché resta aperta, quindi entrano solo i
+ * primi 16 client e gli altri attendono.
+ *
+ * Uso: avviare il server nella modalità da misurare (ad esempio "java server.Server virtual") e poi
+ *     java ServerModeBench [host] [client] [secondi]
+ */
+public class ServerModeBench {
+    private static final int USERS = 8;
+    private static final String PASSWORD = "benchpassword";
+    // tempo concesso alla fase di login
+    private static final long LOGIN_SECONDS = 20;
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "127.0.0.1";
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        registerUsers(host);
+
+        LongAdder requests = new LongAdder();
+        LongAdder failures = new LongAdder();
+        LongAdder loginRetries = new LongAdder();
+        // latenze in microsecondi, un array per client per non condividere niente durante la misura
+        long[][] latencies = new long[clients][];
+        CountDownLatch loggedIn = new CountDownLatch(clients);
+        CountDownLatch go = new CountDownLatch(1);
+        long[] window = new long[1];
+        for (int i = 0; i < clients; i++) {
+            int id = i;
+            Thread client = new Thread(() -> {
+                boolean counted = false;
+                try (SocketConnection connection = new SocketConnection(new Socket(host, Server.PORT))) {
+                    connection.negotiate();
+                    Response login;
+                    while (true) {
+                        connection.send(new LoginRequest("benchuser" + id % USERS, PASSWORD));
+                        login = (Response) connection.receive();
+                        // il server rifiuta i login che non può verificare subito: si riprova dopo un'attesa
+                        if (!(login instanceof ExceptionResponse)
+                                || !(((ExceptionResponse) login).ex instanceof TooManyRequestsException))
+                            break;
+                        loginRetries.increment();
+                        Thread.sleep(10);
+                    }
+                    counted = true;
+                    loggedIn.countDown();
+                    if (!(login instanceof LoginResponse)) {
+                        failures.increment();
+                        return;
+                    }
+                    long session = ((LoginResponse) login).sessionID;
+                    go.await();
+                    long[] samples = new long[1 << 16];
+                    int n = 0;
+                    while (System.nanoTime() < window[0]) {
+                        long t0 = System.nanoTime();
+                        connection.send(new ListDocumentsRequest(session));
+                        connection.receive();
+                        samples[n++ & (samples.length - 1)] = (System.nanoTime() - t0) / 1000;
+                        requests.increment();
+                    }
+                    latencies[id] = Arrays.copyOf(samples, Math.min(n, samples.length));
+                } catch (Exception e) {
+                    failures.increment();
+                } finally {
+                    if (!counted)
+                        loggedIn.countDown();
+                }
+            }, "bench-client-" + i);
+            client.setDaemon(true);
+            client.start();
+        }
+        long loginStart = System.nanoTime();
+        loggedIn.await(LOGIN_SECONDS, TimeUnit.SECONDS);
+        double loginElapsed = (System.nanoTime() - loginStart) / 1e9;
+        long waiting = loggedIn.getCount();
+        long served = clients - waiting - failures.sum();
+
+        long start = System.nanoTime();
+        window[0] = start + TimeUnit.SECONDS.toNanos(seconds);
+        go.countDown();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds) + 500);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        long[] all = Arrays.stream(latencies).filter(l -> l != null).flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.printf("%d clients: %d logged in after %.1f s, %d still waiting, %d failed, %d logins retried%n",
+                clients, served, loginElapsed, waiting, failures.sum(), loginRetries.sum());
+        System.out.printf("%.0f requests/s, latency p50 %d us, p99 %d us%n",
+                requests.sum() / elapsed, percentile(all, 50), percentile(all, 99));
+        System.exit(0);
+    }
+
+    // Registra gli utenti della prova, se non esistono già
+    private static void registerUsers(String host) throws Exception {
+        Registry registry = LocateRegistry.getRegistry(host, Server.RMI_PORT);
+        RmiRegisterUser server = (RmiRegisterUser) registry.lookup(RmiRegisterUser.registryBindName);
+        for (int i = 0; i < USERS; i++) {
+            try {
+                server.registerUser("benchuser" + i, PASSWORD);
+            } catch (DuplicateUsernameException e) {
+                // registrato da una prova precedente
+            }
+        }
+    }
+
+    private static long percentile(long[] sorted, int p) {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[Math.min(sorted.length - 1, (int) ((long) sorted.length * p / 100))];
+    }
+}
@@ -0,0 +1,159 @@
+import server.Session;
+import server.SessionTable;
+import server.User;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongFunction;
+
+/*
+ * Confronta la ricerca delle sessioni in SessionTable con le alternative a chiavi Long: la HashMap<Long, User>
+ * protetta dal monitor di State usata in precedenza (containsKey seguito da get) e una ConcurrentHashMap<Long, Session>.
+ * Con 100000 sessioni attive misura le ricerche al secondo da 1, 4 e 16 thread, una su sedici delle quali cerca un
+ * sessionID inesistente, mentre un altro thread apre e chiude sessioni. Riporta anche la memoria occupata da ogni
+ * struttura, escluse le Session.
+ *
+ * Uso: java SessionTableBench [sessioni] [millisecondi per misura]
+ */
+public class SessionTableBench {
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+        User user = new User("benchuser", "hashedpassword");
+        SecureRandom random = new SecureRandom();
+        long[] keys = new long[count];
+        Session[] sessions = new Session[count];
+        for (int i = 0; i < count; i++) {
+            do {
+                keys[i] = random.nextLong();
+            } while (keys[i] == 0);
+            sessions[i] = new Session(keys[i], user, 0);
+        }
+
+        long before = usedMemory();
+        SessionTable table = new SessionTable();
+        for (int i = 0; i < count; i++)
+            table.putIfAbsent(keys[i], sessions[i]);
+        long tableBytes = usedMemory() - before;
+
+        before = usedMemory();
+        Map<Long, Session> locked = new HashMap<>();
+        for (int i = 0; i < count; i++)
+            locked.put(keys[i], sessions[i]);
+        long lockedBytes = usedMemory() - before;
+
+        before = usedMemory();
+        Map<Long, Session> concurrent = new ConcurrentHashMap<>();
+        for (int i = 0; i < count; i++)
+            concurrent.put(keys[i], sessions[i]);
+        long concurrentBytes = usedMemory() - before;
+
+        Map<String, Lookup> variants = new LinkedHashMap<>();
+        variants.put("SessionTable", new Lookup(table::get,
+                id -> table.putIfAbsent(id, new Session(id, user, 0)), table::remove, tableBytes));
+        variants.put("synchronized HashMap", new Lookup(id -> {
+            synchronized (locked) {
+                return locked.containsKey(id) ? locked.get(id) : null;
+            }
+        }, id -> {
+            synchronized (locked) {
+                return locked.putIfAbsent(id, new Session(id, user, 0));
+            }
+        }, id -> {
+            synchronized (locked) {
+                return locked.remove(id);
+            }
+        }, lockedBytes));
+        variants.put("ConcurrentHashMap", new Lookup(concurrent::get,
+                id -> concurrent.putIfAbsent(id, new Session(id, user, 0)), concurrent::remove, concurrentBytes));
+
+        // riscaldamento, perché il JIT compili tutte le varianti prima delle misure
+        for (Lookup lookup : variants.values())
+            run(lookup, keys, 1, millis / 2);
+
+        System.out.printf("%-22s %12s %16s %16s %16s%n", "", "bytes/entry", "1 thread", "4 threads", "16 threads");
+        for (Map.Entry<String, Lookup> variant : variants.entrySet()) {
+            System.out.printf("%-22s %12.1f", variant.getKey(), variant.getValue().bytes / (double) count);
+            for (int threads : new int[]{1, 4, 16})
+                System.out.printf(" %12.1f M/s", run(variant.getValue(), keys, threads, millis) / 1e6);
+            System.out.println();
+        }
+    }
+
+    private static class Lookup {
+        final LongFunction<Session> get;
+        final LongFunction<Session> put;
+        final LongFunction<Session> remove;
+        final long bytes;
+
+        Lookup(LongFunction<Session> get, LongFunction<Session> put, LongFunction<Session> remove, long bytes) {
+            this.get = get;
+            this.put = put;
+            this.remove = remove;
+            this.bytes = bytes;
+        }
+    }
+
+    // Ricerche al secondo di threads thread, mentre un altro thread apre e chiude sessioni
+    private static double run(Lookup lookup, long[] keys, int threads, long millis) throws Exception {
+        AtomicBoolean stop = new AtomicBoolean();
+        LongAdder lookups = new LongAdder();
+        LongAdder misses = new LongAdder();
+        Thread[] readers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            long seed = 0x9E3779B97F4A7C15L * (t + 1);
+            readers[t] = new Thread(() -> {
+                long x = seed;
+                long n = 0, missed = 0;
+                while (!stop.get()) {
+                    // 1024 ricerche tra un controllo e l'altro di stop
+                    for (int i = 0; i < 1024; i++) {
+                        x ^= x << 13;
+                        x ^= x >>> 7;
+                        x ^= x << 17;
+                        int index = (int) ((x >>> 1) % keys.length);
+                        // una ricerca su sedici usa un sessionID che non esiste
+                        long key = (x & 15) == 0 ? x | 1 : keys[index];
+                        if (lookup.get.apply(key) == null)
+                            missed++;
+                    }
+                    n += 1024;
+                }
+                lookups.add(n);
+                // usare il risultato impedisce al JIT di eliminare le ricerche
+                misses.add(missed);
+            });
+        }
+        Thread writer = new Thread(() -> {
+            long id = 1;
+            while (!stop.get()) {
+                // sessionID dispari e piccoli, diversi da quelli casuali delle sessioni attive con probabilità altissima
+                id += 2;
+                lookup.put.apply(id);
+                lookup.remove.apply(id);
+            }
+        });
+        for (Thread reader : readers)
+            reader.start();
+        writer.start();
+        long start = System.nanoTime();
+        Thread.sleep(millis);
+        stop.set(true);
+        for (Thread reader : readers)
+            reader.join();
+        writer.join();
+        return lookups.sum() / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,106 @@
+import exceptions.DuplicateDocumentException;
+import exceptions.DuplicateUsernameException;
+import protocol.DocumentUri;
+import server.State;
+import server.User;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Misura il throughput delle operazioni di State eseguite da ogni richiesta (getUserFromSession seguito da getDocument)
+ * con 1, 2, 4, 8, 16 e 32 thread. Ogni configurazione viene misurata due volte: da sola e mentre un altro thread
+ * esegue login in continuazione, per verificare che il controllo della password (PBKDF2) non blocchi le altre
+ * richieste.
+ *
+ * Uso: eseguire in una directory vuota, perché lo stato del server viene creato in Turing/
+ *     java StateContentionBench [millisecondi per misura]
+ */
+public class StateContentionBench {
+    private static final int USERS = 32;
+    private static final String PASSWORD = "benchpassword";
+
+    public static void main(String[] args) throws Exception {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+        State state = State.getInstance();
+        long[] sessions = new long[USERS];
+        DocumentUri[] documents = new DocumentUri[USERS];
+        for (int i = 0; i < USERS; i++) {
+            String name = "benchuser" + i;
+            try {
+                state.registerUser(name, PASSWORD);
+            } catch (DuplicateUsernameException e) {
+                // creato da una prova precedente
+            }
+            User user = state.getUser(name);
+            documents[i] = new DocumentUri(name, "relazione");
+            try {
+                user.createDocument(documents[i].docName, 4);
+            } catch (DuplicateDocumentException e) {
+                // creato da una prova precedente
+            }
+            sessions[i] = state.login(user, PASSWORD);
+        }
+
+        // riscaldamento, perché il JIT non penalizzi la prima misura
+        run(state, sessions, documents, 1, millis, false);
+        System.out.printf("%8s %16s %22s %10s%n", "threads", "lookups/s", "lookups/s with logins", "logins/s");
+        for (int threads = 1; threads <= 32; threads *= 2) {
+            double alone = run(state, sessions, documents, threads, millis, false)[0];
+            double[] withLogins = run(state, sessions, documents, threads, millis, true);
+            System.out.printf("%8d %16.0f %22.0f %10.1f%n", threads, alone, withLogins[0], withLogins[1]);
+        }
+        System.exit(0);
+    }
+
+    // Restituisce le ricerche e i login al secondo
+    private static double[] run(State state, long[] sessions, DocumentUri[] documents, int threads, long millis,
+                                boolean logins) throws Exception {
+        LongAdder lookups = new LongAdder();
+        LongAdder loggedIn = new LongAdder();
+        AtomicBoolean stop = new AtomicBoolean();
+        CountDownLatch done = new CountDownLatch(threads + (logins ? 1 : 0));
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long n = 0;
+                try {
+                    while (!stop.get()) {
+                        int i = random.nextInt(USERS);
+                        User user = state.getUserFromSession(sessions[i]);
+                        state.getDocument(user, documents[i]);
+                        n++;
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    lookups.add(n);
+                    done.countDown();
+                }
+            }).start();
+        }
+        if (logins) {
+            new Thread(() -> {
+                try {
+                    User user = state.getUser("benchuser0");
+                    while (!stop.get()) {
+                        state.logout(state.login(user, PASSWORD));
+                        loggedIn.increment();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        long start = System.nanoTime();
+        Thread.sleep(millis);
+        stop.set(true);
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return new double[]{lookups.sum() / seconds, loggedIn.sum() / seconds};
+    }
+}
@@ -1,9 +1,8 @@
 package client;
 
 import protocol.DocumentUri;
-import protocol.Message;
+import protocol.SocketConnection;
 import protocol.request.*;
-import protocol.response.InviteNotification;
 import protocol.response.Response;
 import server.ChatRoomAdressesManager;
 import server.DocumentSection;
@@ -13,6 +12,8 @@ import java.io.*;
 import java.net.*;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
 
@@ -23,10 +24,13 @@ public class Client {
     // Indirizzo remoto del server
     private InetAddress remoteAddress;
     private Socket socket = new Socket();
+    private SocketConnection connection;
     // Indirizzo multicast della chat del documento
     private InetAddress multicastGroup;
     // ID della sessione
     private Long sessionID;
+    // ultimo ID assegnato ad una richiesta inviata in una Pipeline
+    private long lastRequestID = 0;
 
     public Client() {
         try {
@@ -40,6 +44,8 @@ public class Client {
             SocketAddress addr = new InetSocketAddress(remoteAddress, Server.PORT);
             socket.connect(addr);
             socket.setSoTimeout(1000);
+            connection = new SocketConnection(socket);
+            connection.negotiate();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -111,6 +117,19 @@ public class Client {
         return multicastGroup;
     }
 
+    SocketConnection getConnection() {
+        return connection;
+    }
+
+    long nextRequestID() {
+        return ++lastRequestID;
+    }
+
+    // Crea una Pipeline per inviare più richieste senza attendere le risposte
+    public Pipeline pipeline() {
+        return new Pipeline(this);
+    }
+
     public void login(String username, String password) throws IOException, ClassNotFoundException {
         this.loadSessionID();
         if (this.sessionID != null) {
@@ -118,64 +137,88 @@ public class Client {
             this.logout();
         }
         LoginRequest req = new LoginRequest(username, password);
-        req.send(socket);
+        connection.send(req);
         receiveResponse();
     }
 
     public void logout() throws IOException, ClassNotFoundException {
         this.loadSessionID();
         LogoutRequest req = new LogoutRequest(this.sessionID);
-        req.send(socket);
+        connection.send(req);
         receiveResponse();
     }
 
     public void createDocument(String docName, int sections) throws IOException, ClassNotFoundException {
         this.loadSessionID();
         CreateDocumentRequest req = new CreateDocumentRequest(sessionID, docName, sections);
-        req.send(socket);
+        connection.send(req);
         receiveResponse();
     }
 
     public void showDocument(DocumentUri uri) throws IOException, ClassNotFoundException {
         this.loadSessionID();
-        ShowDocumentRequest req = new ShowDocumentRequest(sessionID, uri);
-        req.send(socket);
+        StreamDocumentRequest req = new StreamDocumentRequest(sessionID, uri);
+        connection.send(req);
         receiveResponse();
     }
 
     public void showDocumentSection(DocumentUri uri) throws IOException, ClassNotFoundException {
         this.loadSessionID();
-        ShowDocumentSectionRequest req = new ShowDocumentSectionRequest(sessionID, uri);
-        req.send(socket);
+        StreamDocumentRequest req = new StreamDocumentRequest(sessionID, uri);
+        connection.send(req);
         receiveResponse();
     }
 
     public void editDocument(DocumentUri uri) throws IOException, ClassNotFoundException {
         this.loadSessionID();
         EditRequest req = new EditRequest(sessionID, uri);
-        req.send(socket);
+        connection.send(req);
         receiveResponse();
     }
 
     public void endEditDocument(DocumentUri uri) throws IOException, ClassNotFoundException {
         this.loadSessionID();
-        String editedText = DocumentSection.load(uri).getText();
+        byte[] editedText = DocumentSection.load(uri).getBytes();
         EndEditRequest req = new EndEditRequest(sessionID, uri, editedText);
-        req.send(socket);
+        connection.send(req);
         receiveResponse();
     }
 
     public void inviteCollaborator(String docName, String username) throws IOException, ClassNotFoundException {
         this.loadSessionID();
         InviteCollaboratorRequest req = new InviteCollaboratorRequest(sessionID, docName, username);
-        req.send(socket);
+        connection.send(req);
+        receiveResponse();
+    }
+
+    // Esegue più operazioni della sessione corrente in un solo round trip
+    public void executeBatch(List<Request> requests) throws IOException, ClassNotFoundException {
+        this.loadSessionID();
+        BatchRequest req = new BatchRequest(sessionID, requests);
+        connection.send(req);
         receiveResponse();
     }
 
+    // Rinnova il lease della sessione. Con un intervallo positivo continua a rinnovarlo finché non viene interrotto
+    public void heartbeat(int intervalSeconds) throws IOException, ClassNotFoundException {
+        this.loadSessionID();
+        while (true) {
+            connection.send(new HeartbeatRequest(sessionID));
+            receiveResponse();
+            if (intervalSeconds <= 0)
+                return;
+            try {
+                Thread.sleep(intervalSeconds * 1000L);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
     public void listDocuments() throws IOException, ClassNotFoundException {
         this.loadSessionID();
         ListDocumentsRequest req = new ListDocumentsRequest(sessionID);
-        req.send(socket);
+        connection.send(req);
         receiveResponse();
     }
 
@@ -226,10 +269,10 @@ public class Client {
     }
 
     public Response receiveResponse() throws IOException, ClassNotFoundException {
-        Response response = (Response) Message.receive(socket);
-        while (response instanceof InviteNotification) {
+        Response response = (Response) connection.receive();
+        while (!response.isFinal()) {
             response.process(this);
-            response = (Response) Message.receive(socket);
+            response = (Response) connection.receive();
         }
         response.process(this);
         return response;
@@ -255,6 +298,7 @@ public class Client {
                 + "share < nome documento > < username >\tcondivide il documento\n"
                 + "show < URI >\tmostra l'intero documento o una sezione\n"
                 + "list\tmostra la lista dei documenti\n"
+                + "heartbeat [ secondi ]\tmantiene attiva la sessione, ripetendo ogni tot secondi se indicati\n"
                 + "edit < URI >\tmodifica una sezione del documento\n"
                 + "end-edit < URI >\tfine modifica della sezione del documento\n"
                 + "send < msg >\tinvia un msg sulla chat\n"
@@ -275,6 +319,8 @@ public class Client {
                     c.receiveChatMessages();
                 } else if (args[0].equals("list")) {
                     c.listDocuments();
+                } else if (args[0].equals("heartbeat")) {
+                    c.heartbeat(0);
                 } else {
                     showUsage();
                     System.exit(-1);
@@ -296,6 +342,8 @@ public class Client {
                     c.editDocument(DocumentUri.parse(args[1]));
                 } else if (args[0].equals("end-edit")) {
                     c.endEditDocument(DocumentUri.parse(args[1]));
+                } else if (args[0].equals("heartbeat")) {
+                    c.heartbeat(Integer.parseInt(args[1]));
                 } else {
                     showUsage();
                     System.exit(-1);
@@ -355,6 +403,15 @@ public class Client {
                 c.createDocument("doc" + i, 1);
             }
             c.listDocuments();
+
+            // test batch
+            List<Request> batch = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                batch.add(new CreateDocumentRequest(c.getSessionID(), "batchdoc" + i, 2));
+                batch.add(new InviteCollaboratorRequest(c.getSessionID(), "batchdoc" + i, "test2"));
+            }
+            c.executeBatch(batch);
+
             c.showDocument(new DocumentUri("test1", "troll"));
             c.showDocument(new DocumentUri("troll", "troll"));
             c.showDocument(new DocumentUri("test1", "testdoc"));
@@ -384,6 +441,12 @@ public class Client {
                 c.showDocumentSection(uri);
             }
             c.showDocument(new DocumentUri("test1", "testdoc"));
+
+            // test pipelining
+            Pipeline pipeline = c.pipeline().add(new ListDocumentsRequest(c.getSessionID()));
+            for (int i = 0; i < 10; i++)
+                pipeline.add(new StreamDocumentRequest(c.getSessionID(), new DocumentUri("test1", "testdoc", i)));
+            pipeline.execute();
             c.logout();
 
             c.login("test1", "testpwd1");
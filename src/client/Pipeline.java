@@ -0,0 +1,67 @@
+package client;
+
+import protocol.request.Request;
+import protocol.response.Response;
+
+import java.io.IOException;
+import java.util.*;
+
+/*
+ * Invio di più richieste sulla stessa connessione senza attendere le singole risposte.
+ * Ogni richiesta riceve un ID e le risposte vengono associate alle richieste tramite quell'ID: un intero script paga
+ * un solo round trip invece di uno per richiesta.
+ */
+public class Pipeline {
+    private final Client client;
+    private final List<Request> requests = new ArrayList<>();
+
+    Pipeline(Client client) {
+        this.client = client;
+    }
+
+    public Pipeline add(Request request) {
+        request.setRequestID(client.nextRequestID());
+        requests.add(request);
+        return this;
+    }
+
+    // Invia tutte le richieste e restituisce le risposte nello stesso ordine. Le richieste vengono scritte da un
+    // thread separato mentre questo legge le risposte: se nessuno leggesse, i buffer dei socket potrebbero riempirsi
+    // bloccando sia il client che il server
+    public List<Response> execute() throws IOException, ClassNotFoundException {
+        IOException[] sendError = new IOException[1];
+        Thread sender = new Thread(() -> {
+            try {
+                for (Request request : requests)
+                    client.getConnection().send(request);
+            } catch (IOException e) {
+                sendError[0] = e;
+            }
+        }, "pipeline-sender");
+        sender.start();
+
+        Map<Long, Response> responses = new HashMap<>();
+        try {
+            while (responses.size() < requests.size()) {
+                Response response = (Response) client.getConnection().receive();
+                response.process(client);
+                if (response.isFinal())
+                    responses.put(response.getRequestID(), response);
+            }
+        } finally {
+            try {
+                sender.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (sendError[0] != null)
+            throw sendError[0];
+
+        List<Response> ordered = new ArrayList<>(requests.size());
+        for (Request request : requests)
+            ordered.add(responses.get(request.getRequestID()));
+        requests.clear();
+        return ordered;
+    }
+}
@@ -3,6 +3,7 @@ package client;
 import exceptions.DuplicateUsernameException;
 import exceptions.InvalidPasswordException;
 import exceptions.InvalidUsernameException;
+import exceptions.TooManyRequestsException;
 import protocol.RmiRegisterUser;
 import server.Server;
 
@@ -26,6 +27,8 @@ public class RmiRegisterUserClient {
             System.err.println("Invalid username '" + username + "'.");
         } catch (InvalidPasswordException e) {
             System.err.println("Invalid password '" + password + "'.");
+        } catch (TooManyRequestsException e) {
+            System.err.println("The server is overloaded, try again later.");
         } catch (RemoteException | NotBoundException | InvalidKeySpecException | NoSuchAlgorithmException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,11 @@
+package exceptions;
+
+public class TooManyRequestsException extends ProtocolException {
+    public TooManyRequestsException() {
+
+    }
+
+    public TooManyRequestsException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,126 @@
+package protocol;
+
+import protocol.request.*;
+import protocol.response.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Codec binario: un frame contiene il tag del tipo di messaggio, l'ID della richiesta e i campi del messaggio,
+ * scritti esplicitamente da Message.write. Evita intestazioni, descrittori di classe e riflessione della serializzazione Java.
+ */
+public class BinaryCodec implements Codec {
+    // Legge i campi di un messaggio di un tipo noto
+    private interface Reader {
+        Message read(DataInputStream in) throws IOException;
+    }
+
+    private static final Map<Class<? extends Message>, Byte> tags = new HashMap<>();
+    private static final Reader[] readers = new Reader[256];
+
+    // I tag fanno parte del protocollo: non vanno mai riassegnati, i nuovi messaggi prendono tag nuovi
+    static {
+        register(0x01, LoginRequest.class, LoginRequest::new);
+        register(0x02, LogoutRequest.class, LogoutRequest::new);
+        register(0x03, CreateDocumentRequest.class, CreateDocumentRequest::new);
+        register(0x04, InviteCollaboratorRequest.class, InviteCollaboratorRequest::new);
+        register(0x05, ListDocumentsRequest.class, ListDocumentsRequest::new);
+        register(0x06, ShowDocumentRequest.class, ShowDocumentRequest::new);
+        register(0x07, ShowDocumentSectionRequest.class, ShowDocumentSectionRequest::new);
+        register(0x08, EditRequest.class, EditRequest::new);
+        register(0x09, EndEditRequest.class, EndEditRequest::new);
+        register(0x0A, StreamDocumentRequest.class, StreamDocumentRequest::new);
+        register(0x0B, BatchRequest.class, BatchRequest::new);
+        register(0x0C, HeartbeatRequest.class, HeartbeatRequest::new);
+
+        register(0x41, AckResponse.class, AckResponse::new);
+        register(0x42, ExceptionResponse.class, ExceptionResponse::new);
+        register(0x43, LoginResponse.class, LoginResponse::new);
+        register(0x44, ListDocumentsResponse.class, ListDocumentsResponse::new);
+        register(0x45, ShowDocumentResponse.class, ShowDocumentResponse::new);
+        register(0x46, ShowDocumentSectionResponse.class, ShowDocumentSectionResponse::new);
+        register(0x47, EditResponse.class, EditResponse::new);
+        register(0x48, EndEditResponse.class, EndEditResponse::new);
+        register(0x49, InviteNotification.class, InviteNotification::new);
+        register(0x4A, DocumentHeaderResponse.class, DocumentHeaderResponse::new);
+        register(0x4B, SectionChunkResponse.class, SectionChunkResponse::new);
+        register(0x4C, RawSectionResponse.class, RawSectionResponse::new);
+        register(0x4D, BatchResponse.class, BatchResponse::new);
+    }
+
+    private static void register(int tag, Class<? extends Message> type, Reader reader) {
+        tags.put(type, (byte) tag);
+        readers[tag] = reader;
+    }
+
+    @Override
+    public byte[] encode(Message msg) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeMessage(out, msg);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public Message decode(byte[] frame) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+        return readMessage(in);
+    }
+
+    // Scrive tag e campi di un messaggio, usato anche per i messaggi annidati in un altro
+    public static void writeMessage(DataOutputStream out, Message msg) throws IOException {
+        Byte tag = tags.get(msg.getClass());
+        if (tag == null)
+            throw new NotSerializableException(msg.getClass().getName());
+        out.writeByte(tag);
+        out.writeLong(msg.getRequestID());
+        msg.write(out);
+    }
+
+    public static Message readMessage(DataInputStream in) throws IOException {
+        int tag = in.readUnsignedByte();
+        Reader reader = readers[tag];
+        if (reader == null)
+            throw new InvalidClassException("Unknown message tag " + tag);
+        long requestID = in.readLong();
+        Message msg = reader.read(in);
+        msg.setRequestID(requestID);
+        return msg;
+    }
+
+    // Stringa UTF-8 preceduta dalla sua lunghezza in byte (-1 per null). A differenza di writeUTF non ha limiti di 64 KiB
+    public static void writeString(DataOutputStream out, String s) throws IOException {
+        writeBytes(out, s == null ? null : s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Byte preceduti dalla loro lunghezza (-1 per null), nello stesso formato di writeString: il testo UTF-8 delle
+    // sezioni viene scritto e letto così senza passare da String
+    public static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        if (length > Message.MAX_FRAME_SIZE)
+            throw new StreamCorruptedException("Invalid string length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
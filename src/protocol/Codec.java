@@ -0,0 +1,41 @@
+package protocol;
+
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+
+/*
+ * Codifica dei Message nel contenuto dei frame scambiati sulla connessione.
+ * Il codec viene scelto all'apertura della connessione: il client invia HANDSHAKE_MAGIC seguito dalla versione più
+ * recente che conosce e il server risponde con la versione che userà. Un client che non negozia (cioè che invia
+ * subito la lunghezza del primo frame, il cui primo byte non può valere HANDSHAKE_MAGIC) usa la serializzazione Java.
+ * I client che precedono i frame inviano ogni messaggio come uno stream di ObjectOutputStream completo, senza
+ * lunghezza: si riconoscono dal primo byte, OBJECT_STREAM_MAGIC, e vengono serviti allo stesso modo.
+ */
+public interface Codec {
+    byte HANDSHAKE_MAGIC = 'T';
+    // primo byte dell'intestazione di ObjectOutputStream (0xACED). Non può essere il primo byte della lunghezza di
+    // un frame, che non supera Message.MAX_FRAME_SIZE
+    byte OBJECT_STREAM_MAGIC = (byte) (ObjectStreamConstants.STREAM_MAGIC >> 8);
+
+    // Serializzazione Java, usata dai client che non negoziano il codec
+    int SERIALIZATION = 0;
+    // Codifica binaria esplicita di ogni campo
+    int BINARY = 1;
+    // Codifica binaria con compressione dei messaggi grandi
+    int BINARY_COMPRESSED = 2;
+    // Versione più recente supportata
+    int LATEST_VERSION = BINARY_COMPRESSED;
+
+    byte[] encode(Message msg) throws IOException;
+
+    Message decode(byte[] frame) throws IOException, ClassNotFoundException;
+
+    // Restituisce il codec corrispondente ad una versione negoziata
+    static Codec forVersion(int version) {
+        if (version == BINARY_COMPRESSED)
+            return new CompressingCodec();
+        if (version == BINARY)
+            return new BinaryCodec();
+        return new SerializationCodec();
+    }
+}
@@ -0,0 +1,83 @@
+package protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Codec binario con compressione deflate. Ogni frame inizia con un byte di flag: i messaggi che superano
+ * COMPRESSION_THRESHOLD byte (tipicamente quelli che contengono il testo delle sezioni) vengono compressi, quelli di
+ * controllo, piccoli, viaggiano in chiaro.
+ */
+public class CompressingCodec implements Codec {
+    // Dimensione minima di un messaggio codificato perché valga la pena comprimerlo
+    public static final int COMPRESSION_THRESHOLD = 1024;
+
+    private static final byte FLAG_COMPRESSED = 0x01;
+
+    private final Codec inner = new BinaryCodec();
+
+    @Override
+    public byte[] encode(Message msg) throws IOException {
+        byte[] plain = inner.encode(msg);
+        if (plain.length < COMPRESSION_THRESHOLD)
+            return uncompressed(plain);
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(plain);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(plain.length / 2 + 1);
+            compressed.write(FLAG_COMPRESSED);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                compressed.write(buffer, 0, n);
+            }
+            // un testo già compresso o casuale può crescere: in quel caso si invia in chiaro
+            if (compressed.size() >= plain.length + 1)
+                return uncompressed(plain);
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public Message decode(byte[] frame) throws IOException, ClassNotFoundException {
+        if (frame.length == 0)
+            throw new StreamCorruptedException("Empty frame");
+        if ((frame[0] & FLAG_COMPRESSED) == 0)
+            return inner.decode(Arrays.copyOfRange(frame, 1, frame.length));
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(frame, 1, frame.length - 1);
+            ByteArrayOutputStream plain = new ByteArrayOutputStream(frame.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new StreamCorruptedException("Truncated compressed frame");
+                plain.write(buffer, 0, n);
+                if (plain.size() > Message.MAX_FRAME_SIZE)
+                    throw new StreamCorruptedException("Compressed frame is too large");
+            }
+            return inner.decode(plain.toByteArray());
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException(e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] uncompressed(byte[] payload) {
+        byte[] frame = new byte[payload.length + 1];
+        System.arraycopy(payload, 0, frame, 1, payload.length);
+        return frame;
+    }
+}
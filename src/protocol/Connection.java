@@ -0,0 +1,30 @@
+package protocol;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.FileChannel;
+import java.util.function.Consumer;
+
+/*
+ * Un canale su cui il server può inviare messaggi ad un client, indipendentemente da come viene gestito l'I/O
+ * (un thread per connessione oppure un selettore NIO).
+ */
+public interface Connection {
+    // Invia un messaggio al client
+    void send(Message msg) throws IOException;
+
+    // Invia header (un RawPayload) seguito dai primi length byte di source, copiati dal kernel quando possibile.
+    // source viene chiuso dalla connessione dopo l'invio, anche se fallisce
+    void sendFile(Message header, FileChannel source, long length) throws IOException;
+
+    // Accoda un messaggio che il server invia di propria iniziativa (ad esempio una notifica) senza attendere che
+    // venga scritto. Restituisce false se la connessione è chiusa e il messaggio non potrà essere consegnato
+    boolean push(Message msg);
+
+    // Indirizzo remoto del client
+    SocketAddress getRemoteAddress();
+
+    // Registra listener, che viene chiamato con la connessione quando questa viene chiusa, o subito se è già chiusa.
+    // Registrare più volte lo stesso listener non ha effetto
+    void onClose(Consumer<Connection> listener);
+}
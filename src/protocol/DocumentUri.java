@@ -2,6 +2,9 @@ package protocol;
 
 import server.PermanentStorage;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -53,6 +56,20 @@ public class DocumentUri implements Serializable {
             return Paths.get(PermanentStorage.BASE_FOLDER, owner, docName);
     }
 
+    // Scrive la DocumentUri per BinaryCodec
+    public void write(DataOutputStream out) throws IOException {
+        BinaryCodec.writeString(out, owner);
+        BinaryCodec.writeString(out, docName);
+        out.writeInt(section == null ? -1 : section);
+    }
+
+    public static DocumentUri read(DataInputStream in) throws IOException {
+        String owner = BinaryCodec.readString(in);
+        String docName = BinaryCodec.readString(in);
+        int section = in.readInt();
+        return new DocumentUri(owner, docName, section < 0 ? null : section);
+    }
+
     // Da DocumentUri a String
     @Override
     public String toString() {
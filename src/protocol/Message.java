@@ -1,27 +1,34 @@
 package protocol;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.net.Socket;
 
 
 /*
- * Un messaggio che può essere ricevuto e inviato dal client e dal server
+ * Un messaggio che può essere ricevuto e inviato dal client e dal server.
+ * Sulla connessione ogni messaggio viaggia in un frame: lunghezza (int) seguita dal messaggio codificato dal Codec
+ * negoziato. Per la codifica binaria ogni sottoclasse scrive i propri campi con write e li rilegge con un
+ * costruttore che riceve un DataInputStream, registrato in BinaryCodec.
  */
 public abstract class Message implements Serializable {
     private static final long serialVersionUID = 1L;
 
-    public void send(Socket sock) throws IOException {
-        ObjectOutputStream oos = new ObjectOutputStream(sock.getOutputStream());
-        oos.writeObject(this);
-        oos.flush();
+    // Dimensione massima accettata per un singolo frame
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    // ID scelto dal client per la richiesta e ripetuto dal server nelle risposte relative ad essa. Permette al client
+    // di inviare più richieste prima di leggere le risposte. 0 per le notifiche e per i client che non lo usano
+    private long requestID;
+
+    public long getRequestID() {
+        return requestID;
     }
 
-    public static Message receive(Socket sock) throws IOException, ClassNotFoundException {
-        ObjectInputStream ois = new ObjectInputStream(sock.getInputStream());
-        Message msg = (Message) ois.readObject();
-        return msg;
+    public void setRequestID(long requestID) {
+        this.requestID = requestID;
     }
+
+    // Scrive i campi del messaggio per BinaryCodec
+    public abstract void write(DataOutputStream out) throws IOException;
 }
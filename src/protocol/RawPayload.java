@@ -0,0 +1,15 @@
+package protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Un Message seguito sulla connessione da getPayloadLength() byte grezzi, fuori dal frame e non codificati.
+ * Permette al server di inviare il contenuto di un file con FileChannel.transferTo, senza copiarlo nello heap.
+ */
+public interface RawPayload {
+    long getPayloadLength();
+
+    // Consuma esattamente getPayloadLength() byte dallo stream, subito dopo la ricezione del messaggio
+    void readPayload(InputStream in) throws IOException;
+}
@@ -3,6 +3,7 @@ package protocol;
 import exceptions.DuplicateUsernameException;
 import exceptions.InvalidPasswordException;
 import exceptions.InvalidUsernameException;
+import exceptions.TooManyRequestsException;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
@@ -12,5 +13,5 @@ import java.security.spec.InvalidKeySpecException;
 public interface RmiRegisterUser extends Remote {
     String registryBindName = "turing/register";
 
-    void registerUser(String username, String password) throws RemoteException, InvalidUsernameException, InvalidPasswordException, DuplicateUsernameException, InvalidKeySpecException, NoSuchAlgorithmException;
+    void registerUser(String username, String password) throws RemoteException, InvalidUsernameException, InvalidPasswordException, DuplicateUsernameException, InvalidKeySpecException, NoSuchAlgorithmException, TooManyRequestsException;
 }
@@ -0,0 +1,25 @@
+package protocol;
+
+import java.io.*;
+
+/*
+ * Codec che usa la serializzazione Java. Ogni frame contiene un ObjectOutputStream completo di intestazione e
+ * descrittori di classe.
+ */
+public class SerializationCodec implements Codec {
+    @Override
+    public byte[] encode(Message msg) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(msg);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public Message decode(byte[] frame) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(frame))) {
+            return (Message) ois.readObject();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package protocol;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/*
+ * Connessione bloccante su un Socket. Viene usata dal client e dai ClientHandler del server.
+ */
+public class SocketConnection implements Connection, Closeable {
+    // Thread che scrivono i messaggi accodati con push, così chi li accoda non resta bloccato su un client lento
+    private static final ExecutorService pushSenders = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "push-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    // serializza le scritture sulla connessione senza usare il monitor, che bloccherebbe il carrier di un virtual thread
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // codec negoziato, finché non viene negoziato si usa la serializzazione Java
+    private Codec codec = new SerializationCodec();
+    // vero per i client che precedono i frame: i messaggi sono stream di serializzazione Java senza lunghezza
+    private boolean unframed = false;
+    // messaggi accodati con push e non ancora scritti
+    private final Queue<Message> pushQueue = new ConcurrentLinkedQueue<>();
+    // vero se un thread di pushSenders sta svuotando pushQueue
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    // vero dopo che una scrittura asincrona è fallita
+    private volatile boolean broken = false;
+    // listener registrati con onClose, null dopo la chiusura. Protetti da closeLock
+    private Set<Consumer<Connection>> closeListeners = new HashSet<>();
+    private final ReentrantLock closeLock = new ReentrantLock();
+
+    public SocketConnection(Socket socket) throws IOException {
+        this(socket, new byte[0]);
+    }
+
+    // prefix contiene i primi byte della connessione, già letti da chi l'ha accettata
+    public SocketConnection(Socket socket, byte[] prefix) throws IOException {
+        this.socket = socket;
+        InputStream stream = socket.getInputStream();
+        if (prefix.length > 0)
+            stream = new SequenceInputStream(new ByteArrayInputStream(prefix), stream);
+        this.in = new DataInputStream(new BufferedInputStream(stream));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    // Lato client: propone la versione più recente del protocollo e adotta quella scelta dal server
+    public void negotiate() throws IOException {
+        out.writeByte(Codec.HANDSHAKE_MAGIC);
+        out.writeByte(Codec.LATEST_VERSION);
+        out.flush();
+        this.codec = Codec.forVersion(in.readUnsignedByte());
+    }
+
+    // Lato server: se il client apre la connessione con un handshake risponde con la versione scelta, altrimenti
+    // lascia il primo byte nello stream e continua con la serializzazione Java, con o senza frame
+    public void acceptHandshake() throws IOException {
+        in.mark(1);
+        byte first = in.readByte();
+        if (first != Codec.HANDSHAKE_MAGIC) {
+            in.reset();
+            unframed = first == Codec.OBJECT_STREAM_MAGIC;
+            return;
+        }
+        int version = Math.min(in.readUnsignedByte(), Codec.LATEST_VERSION);
+        out.writeByte(version);
+        out.flush();
+        this.codec = Codec.forVersion(version);
+    }
+
+    // Invia un frame. Più thread potrebbero scrivere sulla stessa connessione.
+    // I messaggi accodati con push prima di questo vengono scritti prima, così una notifica precede la risposta
+    @Override
+    public void send(Message msg) throws IOException {
+        byte[] frame = codec.encode(msg);
+        writeLock.lock();
+        try {
+            writePushed();
+            writeFrame(frame);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Se il socket ha un canale (cioè è stato accettato da un ServerSocketChannel) il file viene trasferito con
+    // transferTo, altrimenti viene copiato sullo stream
+    @Override
+    public void sendFile(Message header, FileChannel source, long length) throws IOException {
+        try (source) {
+            if (unframed)
+                throw new IOException("Raw payloads need a framed connection");
+            byte[] frame = codec.encode(header);
+            writeLock.lock();
+            try {
+                writePushed();
+                writeFrame(frame);
+                out.flush();
+                SocketChannel channel = socket.getChannel();
+                long position = 0;
+                while (position < length) {
+                    long sent;
+                    if (channel != null)
+                        sent = source.transferTo(position, length - position, channel);
+                    else
+                        sent = source.transferTo(position, length - position, Channels.newChannel(out));
+                    if (sent <= 0)
+                        throw new EOFException("File is shorter than " + length + " bytes");
+                    position += sent;
+                }
+                out.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public boolean push(Message msg) {
+        if (broken || socket.isClosed())
+            return false;
+        pushQueue.add(msg);
+        if (draining.compareAndSet(false, true))
+            pushSenders.execute(this::drainPushQueue);
+        return true;
+    }
+
+    // Eseguito da un thread di pushSenders. Un solo thread alla volta svuota la coda, quindi l'ordine di push viene
+    // rispettato
+    private void drainPushQueue() {
+        do {
+            writeLock.lock();
+            try {
+                writePushed();
+                out.flush();
+            } catch (IOException e) {
+                broken = true;
+                pushQueue.clear();
+                System.err.println("Could not push to " + getRemoteAddress() + ": " + e.getMessage());
+            } finally {
+                writeLock.unlock();
+            }
+            draining.set(false);
+        } while (!pushQueue.isEmpty() && draining.compareAndSet(false, true));
+    }
+
+    // Scrive, senza svuotare il buffer, i messaggi accodati con push. Va chiamato tenendo writeLock
+    private void writePushed() throws IOException {
+        Message msg;
+        while ((msg = pushQueue.poll()) != null)
+            writeFrame(codec.encode(msg));
+    }
+
+    private void writeFrame(byte[] frame) throws IOException {
+        if (!unframed)
+            out.writeInt(frame.length);
+        out.write(frame);
+    }
+
+    // Attende e decodifica il prossimo frame
+    public Message receive() throws IOException, ClassNotFoundException {
+        // ObjectInputStream legge solo i byte del messaggio, il successivo resta nello stream
+        if (unframed)
+            return (Message) new ObjectInputStream(in).readObject();
+        int length = in.readInt();
+        if (length < 0 || length > Message.MAX_FRAME_SIZE)
+            throw new StreamCorruptedException("Invalid frame length " + length);
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        Message msg = codec.decode(frame);
+        if (msg instanceof RawPayload)
+            ((RawPayload) msg).readPayload(in);
+        return msg;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return socket.getRemoteSocketAddress();
+    }
+
+    @Override
+    public void onClose(Consumer<Connection> listener) {
+        closeLock.lock();
+        try {
+            if (closeListeners != null) {
+                closeListeners.add(listener);
+                return;
+            }
+        } finally {
+            closeLock.unlock();
+        }
+        listener.accept(this);
+    }
+
+    // Chiude il socket e chiama i listener registrati con onClose, una volta sola
+    @Override
+    public void close() throws IOException {
+        Set<Consumer<Connection>> listeners;
+        closeLock.lock();
+        try {
+            listeners = closeListeners;
+            closeListeners = null;
+        } finally {
+            closeLock.unlock();
+        }
+        try {
+            socket.close();
+        } finally {
+            if (listeners != null) {
+                for (Consumer<Connection> listener : listeners)
+                    listener.accept(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package protocol.request;
+
+import exceptions.InvalidRequestException;
+import exceptions.InvalidSessionException;
+import exceptions.ProtocolException;
+import protocol.BinaryCodec;
+import protocol.Connection;
+import protocol.response.AckResponse;
+import protocol.response.BatchResponse;
+import protocol.response.ExceptionResponse;
+import protocol.response.Response;
+import server.Document;
+import server.State;
+import server.User;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+/*
+ * Richiesta che esegue in un solo round trip una lista di SessionRequest della stessa sessione.
+ * L'utente viene ricavato dalla sessione una sola volta e gli inviti a collaborare vengono salvati su
+ * collaborators.txt una sola volta per documento, alla fine del batch.
+ * Ogni richiesta ottiene la propria risposta (o ExceptionResponse) nella BatchResponse, nello stesso ordine.
+ */
+public class BatchRequest extends Request {
+    private static final long serialVersionUID = 1L;
+
+    private final long sessionID;
+    private final List<Request> requests;
+
+    public BatchRequest(long sessionID, List<Request> requests) {
+        this.sessionID = sessionID;
+        this.requests = requests;
+    }
+
+    public BatchRequest(DataInputStream in) throws IOException {
+        this.sessionID = in.readLong();
+        int size = in.readInt();
+        this.requests = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            this.requests.add((Request) BinaryCodec.readMessage(in));
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeLong(sessionID);
+        out.writeInt(requests.size());
+        for (Request request : requests)
+            BinaryCodec.writeMessage(out, request);
+    }
+
+    public long getSessionID() {
+        return sessionID;
+    }
+
+    public List<Request> getRequests() {
+        return Collections.unmodifiableList(requests);
+    }
+
+    @Override
+    public Response process(Connection client) throws ProtocolException {
+        User requester = State.getInstance().getUserFromSession(this.sessionID);
+        List<Response> responses = new ArrayList<>(requests.size());
+        Set<Document> sharedDocuments = new LinkedHashSet<>();
+        for (Request request : requests) {
+            Response response;
+            try {
+                response = processEntry(client, requester, request, sharedDocuments);
+            } catch (ProtocolException e) {
+                response = new ExceptionResponse(e);
+            }
+            responses.add(request.reply(response));
+        }
+        for (Document document : sharedDocuments)
+            document.saveCollaborators();
+        requester.attach(client);
+        return new BatchResponse(responses);
+    }
+
+    private Response processEntry(Connection client, User requester, Request request, Set<Document> sharedDocuments) throws ProtocolException {
+        if (!(request instanceof SessionRequest))
+            throw new InvalidRequestException(request.getClass().getSimpleName() + " cannot be part of a batch.");
+        SessionRequest sessionRequest = (SessionRequest) request;
+        if (sessionRequest.getSessionID() != this.sessionID)
+            throw new InvalidSessionException("All the requests of a batch must belong to the same session.");
+        if (request instanceof InviteCollaboratorRequest) {
+            sharedDocuments.add(((InviteCollaboratorRequest) request).share(requester));
+            return new AckResponse(request);
+        }
+        return sessionRequest.process(client, requester);
+    }
+
+    @Override
+    public String toString() {
+        return "Batch of " + requests.size() + " requests";
+    }
+}
@@ -1,17 +1,20 @@
 package protocol.request;
 
 import exceptions.ProtocolException;
+import protocol.BinaryCodec;
+import protocol.Connection;
 import protocol.response.AckResponse;
 import protocol.response.Response;
-import server.State;
 import server.User;
 
-import java.net.Socket;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 
 /*
  * Richiesta di creazione nuovo documento.
  */
-public class CreateDocumentRequest extends Request {
+public class CreateDocumentRequest extends Request implements SessionRequest {
     private static final long serialVersionUID = 1L;
 
     public final long sessionID;
@@ -24,13 +27,32 @@ public class CreateDocumentRequest extends Request {
         this.sections = sections;
     }
 
+    public CreateDocumentRequest(DataInputStream in) throws IOException {
+        this.sessionID = in.readLong();
+        this.document_name = BinaryCodec.readString(in);
+        this.sections = in.readInt();
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeLong(sessionID);
+        BinaryCodec.writeString(out, document_name);
+        out.writeInt(sections);
+    }
+
+    @Override
+    public long getSessionID() {
+        return sessionID;
+    }
+
+    @Override
+    public Response process(Connection client) throws ProtocolException {
+        return SessionRequest.processInSession(this, client);
+    }
+
     @Override
-    public Response process(Socket client) throws ProtocolException {
-        User owner = State.getInstance().getUserFromSession(this.sessionID);
-        synchronized (owner) {
-            owner.createDocument(this.document_name, this.sections);
-            owner.processInbox(client);
-        }
+    public Response process(Connection client, User owner) throws ProtocolException {
+        owner.createDocument(this.document_name, this.sections);
         return new AckResponse(this);
     }
 
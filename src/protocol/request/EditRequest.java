@@ -1,6 +1,8 @@
 package protocol.request;
 
+import exceptions.GenericServerErrorException;
 import exceptions.ProtocolException;
+import protocol.Connection;
 import protocol.DocumentUri;
 import protocol.response.EditResponse;
 import protocol.response.Response;
@@ -9,13 +11,16 @@ import server.DocumentSection;
 import server.State;
 import server.User;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetAddress;
-import java.net.Socket;
 
 /*
  * Richiesta di inzio editing.
  */
-public class EditRequest extends Request {
+public class EditRequest extends Request implements SessionRequest {
     private static final long serialVersionUID = 1L;
 
     public final long sessionID;
@@ -26,13 +31,40 @@ public class EditRequest extends Request {
         this.uri = uri;
     }
 
+    public EditRequest(DataInputStream in) throws IOException {
+        this.sessionID = in.readLong();
+        this.uri = DocumentUri.read(in);
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeLong(sessionID);
+        uri.write(out);
+    }
+
+    @Override
+    public long getSessionID() {
+        return sessionID;
+    }
+
+    @Override
+    public Response process(Connection client) throws ProtocolException {
+        return SessionRequest.processInSession(this, client);
+    }
+
     @Override
-    public Response process(Socket client) throws ProtocolException {
-        User requester = State.getInstance().getUserFromSession(this.sessionID);
+    public Response process(Connection client, User requester) throws ProtocolException {
         Document doc = State.getInstance().getDocument(requester, uri);
         DocumentSection docSection = doc.lockSection(requester, uri.section);
+        // il testo va letto prima di rispondere: se la lettura fallisce la sezione non deve restare bloccata da chi
+        // non ne ha ricevuto una copia
+        try {
+            docSection.getBytes();
+        } catch (UncheckedIOException e) {
+            doc.releaseSection(requester, uri.section);
+            throw new GenericServerErrorException(e.getMessage());
+        }
         InetAddress addr = doc.getChatAddress();
-        requester.processInbox(client);
         return new EditResponse(docSection, addr);
     }
 
@@ -1,6 +1,8 @@
 package protocol.request;
 
 import exceptions.ProtocolException;
+import protocol.BinaryCodec;
+import protocol.Connection;
 import protocol.DocumentUri;
 import protocol.response.EndEditResponse;
 import protocol.response.Response;
@@ -8,30 +10,77 @@ import server.Document;
 import server.State;
 import server.User;
 
-import java.net.Socket;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 
 /*
  * Richiesta di terminazione editing.
  */
-public class EndEditRequest extends Request {
+public class EndEditRequest extends Request implements SessionRequest {
     private static final long serialVersionUID = 1L;
 
-    private final long sessionID;
-    private final DocumentUri uri;
-    private final String editedText;
+    // non final perché vengono impostati anche da readObject
+    private long sessionID;
+    private DocumentUri uri;
+    // testo UTF-8 della sezione, scritto nel log così com'è
+    private transient byte[] editedText;
 
-    public EndEditRequest(long sessionID, DocumentUri uri, String editedText) {
+    // Forma serializzata dei client che usano ancora la serializzazione Java, in cui il testo era una String
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("sessionID", long.class),
+            new ObjectStreamField("uri", DocumentUri.class),
+            new ObjectStreamField("editedText", String.class),
+    };
+
+    public EndEditRequest(long sessionID, DocumentUri uri, byte[] editedText) {
         this.sessionID = sessionID;
         this.uri = uri;
         this.editedText = editedText;
     }
 
+    public EndEditRequest(DataInputStream in) throws IOException {
+        this.sessionID = in.readLong();
+        this.uri = DocumentUri.read(in);
+        this.editedText = BinaryCodec.readBytes(in);
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeLong(sessionID);
+        uri.write(out);
+        BinaryCodec.writeBytes(out, editedText);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("sessionID", sessionID);
+        fields.put("uri", uri);
+        fields.put("editedText", editedText == null ? null : new String(editedText, StandardCharsets.UTF_8));
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        this.sessionID = fields.get("sessionID", 0L);
+        this.uri = (DocumentUri) fields.get("uri", null);
+        String editedText = (String) fields.get("editedText", null);
+        this.editedText = editedText == null ? null : editedText.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public long getSessionID() {
+        return sessionID;
+    }
+
+    @Override
+    public Response process(Connection client) throws ProtocolException {
+        return SessionRequest.processInSession(this, client);
+    }
+
     @Override
-    public Response process(Socket client) throws ProtocolException {
-        User editor = State.getInstance().getUserFromSession(this.sessionID);
+    public Response process(Connection client, User editor) throws ProtocolException {
         Document doc = State.getInstance().getDocument(editor, this.uri);
         doc.unlockSection(editor, editedText, this.uri.section);
-        editor.processInbox(client);
         return new EndEditResponse();
     }
 
@@ -0,0 +1,55 @@
+package protocol.request;
+
+import exceptions.ProtocolException;
+import protocol.Connection;
+import protocol.response.AckResponse;
+import protocol.response.Response;
+import server.User;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/*
+ * Rinnova il lease della sessione senza fare altro. Permette a un client inattivo, ad esempio mentre l'utente modifica
+ * una sezione, di non far scadere la sessione.
+ */
+public class HeartbeatRequest extends Request implements SessionRequest {
+    private static final long serialVersionUID = 1L;
+
+    public final long sessionID;
+
+    public HeartbeatRequest(long sessionID) {
+        this.sessionID = sessionID;
+    }
+
+    public HeartbeatRequest(DataInputStream in) throws IOException {
+        this.sessionID = in.readLong();
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeLong(sessionID);
+    }
+
+    @Override
+    public long getSessionID() {
+        return sessionID;
+    }
+
+    @Override
+    public Response process(Connection client) throws ProtocolException {
+        return SessionRequest.processInSession(this, client);
+    }
+
+    // Il lease è già stato rinnovato da State.getUserFromSession
+    @Override
+    public Response process(Connection client, User requester) {
+        return new AckResponse(this);
+    }
+
+    @Override
+    public String toString() {
+        return "Heartbeat";
+    }
+}
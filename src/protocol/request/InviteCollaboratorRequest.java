@@ -2,18 +2,22 @@ package protocol.request;
 
 import exceptions.InvalidRequestException;
 import exceptions.ProtocolException;
+import protocol.BinaryCodec;
+import protocol.Connection;
 import protocol.response.AckResponse;
 import protocol.response.Response;
 import server.Document;
 import server.State;
 import server.User;
 
-import java.net.Socket;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 
 /*
  * Richiesta di aggiunta collaboratore.
  */
-public class InviteCollaboratorRequest extends Request {
+public class InviteCollaboratorRequest extends Request implements SessionRequest {
     private static final long serialVersionUID = 1L;
 
     private final long sessionID;
@@ -26,16 +30,43 @@ public class InviteCollaboratorRequest extends Request {
         this.collaborator = collaborator;
     }
 
+    public InviteCollaboratorRequest(DataInputStream in) throws IOException {
+        this.sessionID = in.readLong();
+        this.docName = BinaryCodec.readString(in);
+        this.collaborator = BinaryCodec.readString(in);
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeLong(sessionID);
+        BinaryCodec.writeString(out, docName);
+        BinaryCodec.writeString(out, collaborator);
+    }
+
+    @Override
+    public long getSessionID() {
+        return sessionID;
+    }
+
     @Override
-    public Response process(Socket client) throws ProtocolException {
-        User requester = State.getInstance().getUserFromSession(sessionID);
+    public Response process(Connection client) throws ProtocolException {
+        return SessionRequest.processInSession(this, client);
+    }
+
+    @Override
+    public Response process(Connection client, User requester) throws ProtocolException {
+        share(requester).saveCollaborators();
+        return new AckResponse(this);
+    }
+
+    // Aggiunge il collaboratore al documento senza salvare collaborators.txt e restituisce il documento condiviso
+    public Document share(User requester) throws ProtocolException {
         User collaborator = State.getInstance().getUser(this.collaborator);
         if (collaborator == requester)
             throw new InvalidRequestException("Cannot share document to owner.");
         Document toShare = requester.getDocument(requester, docName);
-        toShare.inviteCollaborator(collaborator);
-        requester.processInbox(client);
-        return new AckResponse(this);
+        toShare.addCollaborator(collaborator);
+        return toShare;
     }
 
     @Override
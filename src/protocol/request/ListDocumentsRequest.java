@@ -1,19 +1,21 @@
 package protocol.request;
 
 import exceptions.ProtocolException;
+import protocol.Connection;
 import protocol.response.ListDocumentsResponse;
 import protocol.response.Response;
 import server.DocumentInfo;
-import server.State;
 import server.User;
 
-import java.net.Socket;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.List;
 
 /*
  * Richiesta di elencazione dei documenti posseduti e modificabili dall'utente.
  */
-public class ListDocumentsRequest extends Request {
+public class ListDocumentsRequest extends Request implements SessionRequest {
     private static final long serialVersionUID = 1L;
 
     public final long sessionID;
@@ -22,11 +24,28 @@ public class ListDocumentsRequest extends Request {
         this.sessionID = sessionID;
     }
 
+    public ListDocumentsRequest(DataInputStream in) throws IOException {
+        this.sessionID = in.readLong();
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeLong(sessionID);
+    }
+
+    @Override
+    public long getSessionID() {
+        return sessionID;
+    }
+
+    @Override
+    public Response process(Connection client) throws ProtocolException {
+        return SessionRequest.processInSession(this, client);
+    }
+
     @Override
-    public Response process(Socket client) throws ProtocolException {
-        User requester = State.getInstance().getUserFromSession(this.sessionID);
+    public Response process(Connection client, User requester) throws ProtocolException {
         List<DocumentInfo> infos = requester.listDocumentInfos();
-        requester.processInbox(client);
         return new ListDocumentsResponse(infos);
     }
 
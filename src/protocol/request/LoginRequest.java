@@ -1,12 +1,16 @@
 package protocol.request;
 
 import exceptions.ProtocolException;
+import protocol.BinaryCodec;
+import protocol.Connection;
 import protocol.response.LoginResponse;
 import protocol.response.Response;
 import server.State;
 import server.User;
 
-import java.net.Socket;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 
 
 public class LoginRequest extends Request {
@@ -20,15 +24,26 @@ public class LoginRequest extends Request {
         this.password = password;
     }
 
+    public LoginRequest(DataInputStream in) throws IOException {
+        this.username = BinaryCodec.readString(in);
+        this.password = BinaryCodec.readString(in);
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        BinaryCodec.writeString(out, username);
+        BinaryCodec.writeString(out, password);
+    }
+
     public String toString() {
         return String.format("Login %s with password %s", this.username, this.password);
     }
 
     @Override
-    public Response process(Socket client) throws ProtocolException {
+    public Response process(Connection client) throws ProtocolException {
         User user = State.getInstance().getUser(this.username);
         Long sessionID = State.getInstance().login(user, password);
-        user.processInbox(client);
+        user.attach(client);
         return new LoginResponse(sessionID);
     }
 }
@@ -1,11 +1,14 @@
 package protocol.request;
 
 import exceptions.ProtocolException;
+import protocol.Connection;
 import protocol.response.AckResponse;
 import protocol.response.Response;
 import server.State;
 
-import java.net.Socket;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 
 
 /*
@@ -20,9 +23,18 @@ public class LogoutRequest extends Request {
         this.sessionID = sessionID;
     }
 
+    public LogoutRequest(DataInputStream in) throws IOException {
+        this.sessionID = in.readLong();
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeLong(sessionID);
+    }
+
     @Override
-    public Response process(Socket client) throws ProtocolException {
-        State.getInstance().getUserFromSession(sessionID).processInbox(client);
+    public Response process(Connection client) throws ProtocolException {
+        State.getInstance().getUserFromSession(sessionID).detach(client);
         State.getInstance().logout(sessionID);
         return new AckResponse(this);
     }
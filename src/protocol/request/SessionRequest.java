@@ -0,0 +1,27 @@
+package protocol.request;
+
+import exceptions.ProtocolException;
+import protocol.Connection;
+import protocol.response.Response;
+import server.State;
+import server.User;
+
+/*
+ * Una richiesta eseguita per conto dell'utente che ha aperto una sessione.
+ * Oltre che da sola può essere eseguita all'interno di una BatchRequest, che ricava l'utente dalla sessione una sola
+ * volta per tutte le richieste.
+ */
+public interface SessionRequest {
+    long getSessionID();
+
+    // Esegue la richiesta per conto di requester, già ricavato dalla sessione
+    Response process(Connection client, User requester) throws ProtocolException;
+
+    // Esecuzione di una singola richiesta: ricava l'utente, esegue e gli notifica gli inviti pendenti
+    static Response processInSession(SessionRequest request, Connection client) throws ProtocolException {
+        User requester = State.getInstance().getUserFromSession(request.getSessionID());
+        Response response = request.process(client, requester);
+        requester.attach(client);
+        return response;
+    }
+}
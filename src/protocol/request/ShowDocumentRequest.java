@@ -1,6 +1,7 @@
 package protocol.request;
 
 import exceptions.ProtocolException;
+import protocol.Connection;
 import protocol.DocumentUri;
 import protocol.response.Response;
 import protocol.response.ShowDocumentResponse;
@@ -8,12 +9,14 @@ import server.Document;
 import server.State;
 import server.User;
 
-import java.net.Socket;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 
 /*
  * Richiesta di download di un intero documento
  */
-public class ShowDocumentRequest extends Request {
+public class ShowDocumentRequest extends Request implements SessionRequest {
     private static final long serialVersionUID = 1L;
 
     private final long sessionID;
@@ -24,11 +27,30 @@ public class ShowDocumentRequest extends Request {
         this.uri = uri;
     }
 
+    public ShowDocumentRequest(DataInputStream in) throws IOException {
+        this.sessionID = in.readLong();
+        this.uri = DocumentUri.read(in);
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeLong(sessionID);
+        uri.write(out);
+    }
+
+    @Override
+    public long getSessionID() {
+        return sessionID;
+    }
+
+    @Override
+    public Response process(Connection client) throws ProtocolException {
+        return SessionRequest.processInSession(this, client);
+    }
+
     @Override
-    public Response process(Socket client) throws ProtocolException {
-        User requester = State.getInstance().getUserFromSession(this.sessionID);
+    public Response process(Connection client, User requester) throws ProtocolException {
         Document document = State.getInstance().getDocument(requester, this.uri);
-        requester.processInbox(client);
         return new ShowDocumentResponse(document);
     }
 
@@ -1,6 +1,7 @@
 package protocol.request;
 
 import exceptions.ProtocolException;
+import protocol.Connection;
 import protocol.DocumentUri;
 import protocol.response.Response;
 import protocol.response.ShowDocumentSectionResponse;
@@ -8,13 +9,15 @@ import server.DocumentSection;
 import server.State;
 import server.User;
 
-import java.net.Socket;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 
 
 /*
  * Richiesta di download di una sezione.
  */
-public class ShowDocumentSectionRequest extends Request {
+public class ShowDocumentSectionRequest extends Request implements SessionRequest {
     private static final long serialVersionUID = 1L;
 
     private final long sessionID;
@@ -25,11 +28,30 @@ public class ShowDocumentSectionRequest extends Request {
         this.uri = uri;
     }
 
+    public ShowDocumentSectionRequest(DataInputStream in) throws IOException {
+        this.sessionID = in.readLong();
+        this.uri = DocumentUri.read(in);
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeLong(sessionID);
+        uri.write(out);
+    }
+
+    @Override
+    public long getSessionID() {
+        return sessionID;
+    }
+
+    @Override
+    public Response process(Connection client) throws ProtocolException {
+        return SessionRequest.processInSession(this, client);
+    }
+
     @Override
-    public Response process(Socket client) throws ProtocolException {
-        User requester = State.getInstance().getUserFromSession(this.sessionID);
+    public Response process(Connection client, User requester) throws ProtocolException {
         DocumentSection docSection = State.getInstance().getDocumentSection(requester, this.uri);
-        requester.processInbox(client);
         return new ShowDocumentSectionResponse(docSection);
     }
 
@@ -0,0 +1,123 @@
+package protocol.request;
+
+import exceptions.GenericServerErrorException;
+import exceptions.ProtocolException;
+import protocol.Connection;
+import protocol.DocumentUri;
+import protocol.response.AckResponse;
+import protocol.response.DocumentHeaderResponse;
+import protocol.response.RawSectionResponse;
+import protocol.response.Response;
+import protocol.response.SectionChunkResponse;
+import server.Document;
+import server.DocumentSection;
+import server.PermanentStorage;
+import server.State;
+import server.User;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Richiesta di download di un documento (o di una sola sezione) in streaming.
+ * Invece di un'unica ShowDocumentResponse con tutto il documento il server invia una DocumentHeaderResponse seguita
+ * da una parte per ogni sezione, così che nessuno dei due lati debba tenere in memoria l'intero documento. Le sezioni
+ * non bloccate vengono inviate come RawSectionResponse, copiando il file direttamente sul socket; quelle bloccate come
+ * SectionChunkResponse. Lo stream termina con una AckResponse.
+ * Con il server NIO send e sendFile attendono che il client abbia letto le parti precedenti quando la coda di uscita
+ * è piena, quindi la richiesta non accoda tutto il documento insieme né tiene aperto un file per ogni sezione.
+ */
+public class StreamDocumentRequest extends Request implements SessionRequest {
+    private static final long serialVersionUID = 1L;
+
+    private final long sessionID;
+    private final DocumentUri uri;
+
+    public StreamDocumentRequest(long sessionID, DocumentUri uri) {
+        this.sessionID = sessionID;
+        this.uri = uri;
+    }
+
+    public StreamDocumentRequest(DataInputStream in) throws IOException {
+        this.sessionID = in.readLong();
+        this.uri = DocumentUri.read(in);
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeLong(sessionID);
+        uri.write(out);
+    }
+
+    @Override
+    public long getSessionID() {
+        return sessionID;
+    }
+
+    @Override
+    public Response process(Connection client) throws ProtocolException {
+        return SessionRequest.processInSession(this, client);
+    }
+
+    @Override
+    public Response process(Connection client, User requester) throws ProtocolException {
+        Document document = State.getInstance().getDocument(requester, this.uri);
+        int first = 0;
+        int last = document.getSectionsCount() - 1;
+        if (uri.section != null) {
+            document.getSection(uri.section);
+            first = last = uri.section;
+        }
+        try {
+            client.send(reply(new DocumentHeaderResponse(document.uri, last - first + 1)));
+            for (int i = first; i <= last; i++) {
+                DocumentSection section = document.getSection(i);
+                // una sezione bloccata potrebbe essere riscritta durante il trasferimento: si invia il suo testo.
+                // Lo stesso vale se il file non contiene ancora l'ultima modifica, scritta solo nel log, o se non
+                // esiste ancora (getBytes lo crea al primo accesso) o se Storage non tiene la sezione in un file a sé
+                FileChannel source = null;
+                if (!section.isLocked() && section.isMaterialized())
+                    source = openSection(section);
+                if (source == null) {
+                    client.send(reply(new SectionChunkResponse(section.getUri(), section.getBytes())));
+                } else {
+                    // la lunghezza viene dal file aperto: una riscrittura successiva lo sostituisce senza modificarlo
+                    long length;
+                    try {
+                        length = source.size();
+                    } catch (IOException e) {
+                        source.close();
+                        throw e;
+                    }
+                    client.sendFile(reply(new RawSectionResponse(section.getUri(), length)), source, length);
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            // UncheckedIOException: il testo di una sezione non può essere letto da disco
+            throw new GenericServerErrorException(e.getMessage());
+        }
+        return new AckResponse(this);
+    }
+
+    // Apre il file della sezione, o restituisce null se la sezione non ha un file a sé leggibile
+    private static FileChannel openSection(DocumentSection section) {
+        Path path = PermanentStorage.get().localFile(PermanentStorage.key(section.getUri()));
+        if (path == null)
+            return null;
+        try {
+            return FileChannel.open(path, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Stream " + this.uri;
+    }
+}
@@ -1,8 +1,13 @@
 package protocol.response;
 
 import client.Client;
+import protocol.BinaryCodec;
 import protocol.request.Request;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 /*
  * Risposta generica. L'operazione precedente è andata a buon fine.
  */
@@ -15,6 +20,15 @@ public class AckResponse extends Response {
         this.reqAck = reqAck;
     }
 
+    public AckResponse(DataInputStream in) throws IOException {
+        this.reqAck = (Request) BinaryCodec.readMessage(in);
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        BinaryCodec.writeMessage(out, reqAck);
+    }
+
     public boolean valid(Request req) {
         return req == reqAck;
     }
@@ -0,0 +1,50 @@
+package protocol.response;
+
+import client.Client;
+import protocol.BinaryCodec;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Risposta ad una BatchRequest: una risposta per ogni richiesta del batch, nello stesso ordine.
+ */
+public class BatchResponse extends Response {
+    private static final long serialVersionUID = 1L;
+
+    public final List<Response> responses;
+
+    public BatchResponse(List<Response> responses) {
+        this.responses = responses;
+    }
+
+    public BatchResponse(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        this.responses = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            this.responses.add((Response) BinaryCodec.readMessage(in));
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(responses.size());
+        for (Response response : responses)
+            BinaryCodec.writeMessage(out, response);
+    }
+
+    @Override
+    public String toString() {
+        long errors = responses.stream().filter(r -> r instanceof ExceptionResponse).count();
+        return "Batch di " + responses.size() + " operazioni eseguito, " + errors + " errori.";
+    }
+
+    @Override
+    public void process(Client client) {
+        for (Response response : responses)
+            response.process(client);
+        System.out.println(this.toString());
+    }
+}
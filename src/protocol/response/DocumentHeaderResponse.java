@@ -0,0 +1,50 @@
+package protocol.response;
+
+import client.Client;
+import protocol.DocumentUri;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/*
+ * Primo messaggio dello stream generato da una StreamDocumentRequest: annuncia il documento e il numero di sezioni
+ * che seguiranno.
+ */
+public class DocumentHeaderResponse extends Response {
+    private static final long serialVersionUID = 1L;
+
+    public final DocumentUri uri;
+    public final int sections;
+
+    public DocumentHeaderResponse(DocumentUri uri, int sections) {
+        this.uri = uri;
+        this.sections = sections;
+    }
+
+    public DocumentHeaderResponse(DataInputStream in) throws IOException {
+        this.uri = DocumentUri.read(in);
+        this.sections = in.readInt();
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        uri.write(out);
+        out.writeInt(sections);
+    }
+
+    @Override
+    public String toString() {
+        return "Ricezione di " + sections + " sezioni del documento " + uri + " in " + uri.getPath();
+    }
+
+    @Override
+    public boolean isFinal() {
+        return false;
+    }
+
+    @Override
+    public void process(Client client) {
+        System.out.println(this.toString());
+    }
+}
@@ -3,6 +3,8 @@ package protocol.response;
 import client.Client;
 import server.DocumentSection;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 
@@ -21,6 +23,21 @@ public class EditResponse extends Response {
         this.chatAddress = chatAddress;
     }
 
+    public EditResponse(DataInputStream in) throws IOException {
+        this.section = DocumentSection.read(in);
+        byte[] address = new byte[in.readUnsignedByte()];
+        in.readFully(address);
+        this.chatAddress = address.length == 0 ? null : InetAddress.getByAddress(address);
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        section.write(out);
+        byte[] address = chatAddress == null ? new byte[0] : chatAddress.getAddress();
+        out.writeByte(address.length);
+        out.write(address);
+    }
+
     @Override
     public String toString() {
         return section.getUri() + " bloccato con successo. Indirizzo chat: " + chatAddress + ".";
@@ -2,12 +2,28 @@ package protocol.response;
 
 import client.Client;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
 /*
  * Risposta ad una richiesta EndEditRequest.
  */
 public class EndEditResponse extends Response {
     private static final long serialVersionUID = 1L;
 
+    public EndEditResponse() {
+
+    }
+
+    public EndEditResponse(DataInputStream in) {
+
+    }
+
+    @Override
+    public void write(DataOutputStream out) {
+
+    }
+
     @Override
     public void process(Client client) {
         client.setMulticastGroup(null);
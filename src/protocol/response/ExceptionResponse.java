@@ -1,6 +1,12 @@
 package protocol.response;
 
 import client.Client;
+import exceptions.GenericServerErrorException;
+import protocol.BinaryCodec;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 
 /*
  * Risposta generica di errore. Il server ha generato una eccezione durante l'esecuzione di una richiesta.
@@ -15,6 +21,34 @@ public class ExceptionResponse extends Response {
         this.ex = ex;
     }
 
+    public ExceptionResponse(DataInputStream in) throws IOException {
+        String className = BinaryCodec.readString(in);
+        String message = BinaryCodec.readString(in);
+        this.ex = rebuild(className, message);
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        BinaryCodec.writeString(out, ex.getClass().getName());
+        BinaryCodec.writeString(out, ex.getMessage());
+    }
+
+    // Ricostruisce l'eccezione a partire dal nome della classe. Se la classe non è un'eccezione nota al client viene
+    // riportata come errore generico del server
+    private static Exception rebuild(String className, String message) {
+        try {
+            Class<?> type = Class.forName(className, false, ExceptionResponse.class.getClassLoader());
+            if (Exception.class.isAssignableFrom(type)) {
+                if (message == null)
+                    return (Exception) type.getConstructor().newInstance();
+                return (Exception) type.getConstructor(String.class).newInstance(message);
+            }
+        } catch (ReflectiveOperationException ignored) {
+
+        }
+        return new GenericServerErrorException(message == null ? className : className + ": " + message);
+    }
+
     @Override
     public String toString() {
         return "Il server ha riportato un errore: " + ex.toString();
@@ -1,8 +1,13 @@
 package protocol.response;
 
 import client.Client;
+import protocol.BinaryCodec;
 import protocol.DocumentUri;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 /*
  * Response che notifica l'utente della ricezione di un invito di collaborazione ad un altro documento.
  */
@@ -17,11 +22,27 @@ public class InviteNotification extends Response {
         this.docName = docName;
     }
 
+    public InviteNotification(DataInputStream in) throws IOException {
+        this.owner = BinaryCodec.readString(in);
+        this.docName = BinaryCodec.readString(in);
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        BinaryCodec.writeString(out, owner);
+        BinaryCodec.writeString(out, docName);
+    }
+
     @Override
     public String toString() {
         return "Hai ricevuto un invito di collaborazione sul documento " + new DocumentUri(owner, docName);
     }
 
+    @Override
+    public boolean isFinal() {
+        return false;
+    }
+
     @Override
     public void process(Client client) {
         System.out.println(this.toString());
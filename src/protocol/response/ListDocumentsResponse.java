@@ -3,6 +3,10 @@ package protocol.response;
 import client.Client;
 import server.DocumentInfo;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 /*
@@ -18,6 +22,20 @@ public class ListDocumentsResponse extends Response {
         this.infos = infos;
     }
 
+    public ListDocumentsResponse(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        this.infos = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            this.infos.add(DocumentInfo.read(in));
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(infos.size());
+        for (DocumentInfo info : infos)
+            info.write(out);
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
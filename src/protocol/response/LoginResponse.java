@@ -1,8 +1,11 @@
 package protocol.response;
 
-
 import client.Client;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 /*
  * Una Response generata a seguito di una LoginRequest.
  */
@@ -15,6 +18,17 @@ public class LoginResponse extends Response {
         this.sessionID = sessionID;
     }
 
+    public LoginResponse(DataInputStream in) throws IOException {
+        this.sessionID = in.readBoolean() ? in.readLong() : null;
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeBoolean(sessionID != null);
+        if (sessionID != null)
+            out.writeLong(sessionID);
+    }
+
     public String toString() {
         return "Login eseguito con successo! Nuovo ID sessione: " + sessionID;
     }
@@ -0,0 +1,68 @@
+package protocol.response;
+
+import client.Client;
+import protocol.DocumentUri;
+import protocol.RawPayload;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/*
+ * Parte dello stream di una StreamDocumentRequest: il contenuto di una sezione non bloccata, inviato così com'è
+ * sul disco del server subito dopo questo messaggio. Il client lo copia direttamente nel file della sezione.
+ */
+public class RawSectionResponse extends Response implements RawPayload {
+    private static final long serialVersionUID = 1L;
+
+    public final DocumentUri uri;
+    public final long length;
+
+    public RawSectionResponse(DocumentUri uri, long length) {
+        this.uri = uri;
+        this.length = length;
+    }
+
+    public RawSectionResponse(DataInputStream in) throws IOException {
+        this.uri = DocumentUri.read(in);
+        this.length = in.readLong();
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        uri.write(out);
+        out.writeLong(length);
+    }
+
+    @Override
+    public long getPayloadLength() {
+        return length;
+    }
+
+    @Override
+    public void readPayload(InputStream in) throws IOException {
+        Path path = uri.getPath();
+        Files.createDirectories(path.getParent());
+        byte[] buffer = new byte[8192];
+        try (OutputStream out = Files.newOutputStream(path)) {
+            long remaining = length;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0)
+                    throw new EOFException();
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+    }
+
+    @Override
+    public boolean isFinal() {
+        return false;
+    }
+
+    @Override
+    public void process(Client client) {
+
+    }
+}
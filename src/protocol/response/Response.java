@@ -12,4 +12,10 @@ public abstract class Response extends Message {
     private static final long serialVersionUID = 1L;
 
     public abstract void process(Client client);
+
+    // false per i messaggi che il server invia prima della risposta vera e propria (notifiche, parti di uno stream):
+    // il client li processa e continua ad attendere
+    public boolean isFinal() {
+        return true;
+    }
 }
@@ -0,0 +1,56 @@
+package protocol.response;
+
+import client.Client;
+import protocol.BinaryCodec;
+import protocol.DocumentUri;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/*
+ * Il testo di una sezione inviato come parte dello stream di una StreamDocumentRequest.
+ * Il client lo scrive subito su disco, senza attendere il resto del documento.
+ */
+public class SectionChunkResponse extends Response {
+    private static final long serialVersionUID = 1L;
+
+    public final DocumentUri uri;
+    // testo UTF-8 della sezione, scritto nel file così com'è
+    public final byte[] text;
+
+    public SectionChunkResponse(DocumentUri uri, byte[] text) {
+        this.uri = uri;
+        this.text = text;
+    }
+
+    public SectionChunkResponse(DataInputStream in) throws IOException {
+        this.uri = DocumentUri.read(in);
+        this.text = BinaryCodec.readBytes(in);
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        uri.write(out);
+        BinaryCodec.writeBytes(out, text);
+    }
+
+    @Override
+    public boolean isFinal() {
+        return false;
+    }
+
+    @Override
+    public void process(Client client) {
+        try {
+            Path path = uri.getPath();
+            Files.createDirectories(path.getParent());
+            Files.write(path, text);
+        } catch (IOException e) {
+            System.err.println("Si è verificato un errore durante il salvataggio della sezione " + uri + ":");
+            e.printStackTrace();
+        }
+    }
+}
@@ -3,6 +3,8 @@ package protocol.response;
 import client.Client;
 import server.Document;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 
 /*
@@ -18,6 +20,15 @@ public class ShowDocumentResponse extends Response {
         this.document = document;
     }
 
+    public ShowDocumentResponse(DataInputStream in) throws IOException {
+        this.document = Document.read(in);
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        document.write(out);
+    }
+
     @Override
     public String toString() {
         return document.toString();
@@ -3,6 +3,8 @@ package protocol.response;
 import client.Client;
 import server.DocumentSection;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 
 /*
@@ -18,6 +20,15 @@ public class ShowDocumentSectionResponse extends Response {
         this.section = section;
     }
 
+    public ShowDocumentSectionResponse(DataInputStream in) throws IOException {
+        this.section = DocumentSection.read(in);
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        section.write(out);
+    }
+
     @Override
     public String toString() {
         return section.toString();
@@ -0,0 +1,167 @@
+package server;
+
+import exceptions.TooManyRequestsException;
+import protocol.request.BatchRequest;
+import protocol.request.Request;
+import protocol.request.SessionRequest;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Limiti sul carico che un client può imporre al server. Vengono letti dalle proprietà di sistema:
+ * - turing.maxConnections: connessioni aperte contemporaneamente (predefinito 1024)
+ * - turing.maxInFlight: richieste di una connessione ricevute e non ancora eseguite (predefinito 16, solo NIO: un
+ *   ClientHandler legge la richiesta successiva solo dopo aver risposto)
+ * - turing.sessionRate: richieste al secondo per sessione, con raffica massima turing.sessionBurst (100 e 200)
+ * - turing.rate.<NomeRichiesta>: "rate[:burst]" richieste al secondo per sessione di un certo tipo. Le richieste che
+ *   scrivono su disco hanno un limite predefinito
+ * Quello che supera i limiti viene rifiutato subito e conteggiato.
+ */
+public class AdmissionControl {
+    private static final AdmissionControl singleton = new AdmissionControl();
+
+    public final int maxConnections = Integer.getInteger("turing.maxConnections", 1024);
+    public final int maxInFlight = Integer.getInteger("turing.maxInFlight", 16);
+    private final double sessionRate = Double.parseDouble(System.getProperty("turing.sessionRate", "100"));
+    private final double sessionBurst = Double.parseDouble(System.getProperty("turing.sessionBurst", "200"));
+
+    private final AtomicInteger openConnections = new AtomicInteger();
+    // token bucket di ogni sessione e, per ogni sessione, di ogni tipo di richiesta limitato
+    private final Map<Long, TokenBucket> sessionBuckets = new ConcurrentHashMap<>();
+    private final Map<Long, Map<String, TokenBucket>> typeBuckets = new ConcurrentHashMap<>();
+
+    // contatori di ciò che è stato rifiutato
+    private final LongAdder shedConnections = new LongAdder();
+    private final LongAdder shedInFlight = new LongAdder();
+    private final LongAdder shedSessionRate = new LongAdder();
+    private final LongAdder shedTypeRate = new LongAdder();
+
+    private AdmissionControl() {
+
+    }
+
+    public static AdmissionControl getInstance() {
+        return singleton;
+    }
+
+    // Da chiamare quando viene accettata una connessione: se restituisce false va chiusa subito, altrimenti alla sua
+    // chiusura va chiamato connectionClosed
+    public boolean tryOpenConnection() {
+        while (true) {
+            int open = openConnections.get();
+            if (open >= maxConnections) {
+                shedConnections.increment();
+                return false;
+            }
+            if (openConnections.compareAndSet(open, open + 1))
+                return true;
+        }
+    }
+
+    public void connectionClosed() {
+        openConnections.decrementAndGet();
+    }
+
+    // Richiesta rifiutata perché la connessione ne ha già troppe in attesa
+    public TooManyRequestsException rejectInFlight() {
+        shedInFlight.increment();
+        return new TooManyRequestsException("More than " + maxInFlight + " requests in flight on this connection");
+    }
+
+    // Crea i token bucket di una sessione appena aperta. Le richieste con un ID di sessione sconosciuto non vengono
+    // limitate qui: vengono rifiutate subito dopo con InvalidSessionException
+    public void sessionOpened(long sessionID) {
+        sessionBuckets.put(sessionID, new TokenBucket(sessionRate, sessionBurst));
+        typeBuckets.put(sessionID, new ConcurrentHashMap<>());
+    }
+
+    // Lancia TooManyRequestsException se la sessione della richiesta ha superato i propri limiti. Una BatchRequest
+    // consuma un gettone per ogni richiesta che contiene, al più quanti ne contiene il bucket. Se un limite viene
+    // superato la richiesta non consuma alcun gettone
+    public void admit(Request request) throws TooManyRequestsException {
+        long sessionID;
+        List<Request> entries;
+        if (request instanceof SessionRequest) {
+            sessionID = ((SessionRequest) request).getSessionID();
+            entries = List.of(request);
+        } else if (request instanceof BatchRequest) {
+            sessionID = ((BatchRequest) request).getSessionID();
+            entries = ((BatchRequest) request).getRequests();
+        } else
+            return;
+
+        TokenBucket session = sessionBuckets.get(sessionID);
+        Map<String, TokenBucket> types = typeBuckets.get(sessionID);
+        if (session == null || types == null)
+            return;
+        int cost = Math.max(1, entries.size());
+        if (!session.tryAcquire(cost)) {
+            shedSessionRate.increment();
+            throw new TooManyRequestsException("Too many requests for this session, slow down");
+        }
+
+        // numero di richieste di ogni tipo limitato
+        Map<String, Integer> typeCosts = new LinkedHashMap<>();
+        for (Request entry : entries) {
+            String type = entry.getClass().getSimpleName();
+            if (typeLimit(type) != null)
+                typeCosts.merge(type, 1, Integer::sum);
+        }
+        // bucket già consumati, da restituire se un tipo successivo supera il limite
+        Map<TokenBucket, Integer> acquired = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> typeCost : typeCosts.entrySet()) {
+            String type = typeCost.getKey();
+            TokenBucket bucket = types.computeIfAbsent(type, t -> newBucket(typeLimit(t)));
+            if (!bucket.tryAcquire(typeCost.getValue())) {
+                acquired.forEach(TokenBucket::release);
+                session.release(cost);
+                shedTypeRate.increment();
+                throw new TooManyRequestsException("Too many " + type + " for this session, slow down");
+            }
+            acquired.put(bucket, typeCost.getValue());
+        }
+    }
+
+    private static String typeLimit(String type) {
+        return System.getProperty("turing.rate." + type, defaultTypeLimit(type));
+    }
+
+    // Le richieste che riscrivono file sul disco hanno un limite anche se non configurato
+    private static String defaultTypeLimit(String type) {
+        switch (type) {
+            case "EndEditRequest":
+            case "CreateDocumentRequest":
+                return "10:20";
+            default:
+                return null;
+        }
+    }
+
+    private static TokenBucket newBucket(String limit) {
+        String[] parts = limit.split(":");
+        double rate = Double.parseDouble(parts[0]);
+        double burst = parts.length > 1 ? Double.parseDouble(parts[1]) : rate;
+        return new TokenBucket(rate, burst);
+    }
+
+    // Dimentica lo stato di una sessione terminata
+    public void forgetSession(long sessionID) {
+        sessionBuckets.remove(sessionID);
+        typeBuckets.remove(sessionID);
+    }
+
+    public long getShedTotal() {
+        return shedConnections.sum() + shedInFlight.sum() + shedSessionRate.sum() + shedTypeRate.sum();
+    }
+
+    public String toString() {
+        return String.format("Admission: %d/%d connections open, shed %d connections, %d in-flight, %d session rate, %d type rate.",
+                openConnections.get(), maxConnections, shedConnections.sum(), shedInFlight.sum(),
+                shedSessionRate.sum(), shedTypeRate.sum());
+    }
+}
@@ -0,0 +1,248 @@
+package server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/*
+ * Scrive i file del server in modo che un crash lasci la versione precedente o quella nuova, mai un file scritto a
+ * metà: il contenuto viene scritto in un file temporaneo nella stessa directory, reso persistente con fsync e
+ * rinominato sopra il file di destinazione con una rename atomica; infine viene fatto l'fsync della directory.
+ * Le scritture concorrenti vengono raggruppate dal thread storage-sync, che attende al più turing.syncLatency
+ * millisecondi (default 2) prima di scriverle: più scritture dello stesso file nella stessa finestra diventano una
+ * sola, e le rename nella stessa directory condividono un solo fsync della directory. Con turing.syncLatency=0 ogni
+ * scrittura viene eseguita subito dal thread che la richiede.
+ * Gli fsync di un batch vengono eseguiti in parallelo da turing.syncThreads thread storage-fsync (default 4).
+ * I file temporanei lasciati da un crash vengono cancellati da removeTemporaryFiles all'apertura dello storage.
+ */
+public class AtomicFileWriter {
+    // Contenuto in attesa di essere scritto. Chi scrive di nuovo lo stesso file prima del flush ne sostituisce il
+    // contenuto e attende lo stesso completamento
+    private static class Pending {
+        byte[] bytes;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Pending(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    // estensione dei file temporanei
+    public static final String TEMP_SUFFIX = ".tmp";
+
+    private static final AtomicFileWriter singleton = new AtomicFileWriter();
+
+    public final long maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("turing.syncLatency", 2));
+
+    // protegge pending
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition hasPending = lock.newCondition();
+    private Map<Path, Pending> pending = new LinkedHashMap<>();
+    // eseguono le scritture di un batch. Sono thread dedicati: gli fsync bloccano, e non devono occupare il
+    // ForkJoinPool comune usato dal caricamento all'avvio
+    private ExecutorService syncers;
+
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder filesWritten = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder fsyncs = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder flushNanos = new LongAdder();
+
+    private AtomicFileWriter() {
+        if (maxLatencyNanos > 0) {
+            syncers = Executors.newFixedThreadPool(Integer.getInteger("turing.syncThreads", 4), runnable -> {
+                Thread thread = new Thread(runnable, "storage-fsync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            Thread syncer = new Thread(this::syncLoop, "storage-sync");
+            syncer.setDaemon(true);
+            syncer.start();
+        }
+    }
+
+    public static AtomicFileWriter getInstance() {
+        return singleton;
+    }
+
+    // Scrive bytes in target e ritorna quando il file è persistente
+    public void write(Path target, byte[] bytes) throws IOException {
+        try {
+            writeAsync(target, bytes).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing " + target);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // Accoda la scrittura di target. Il future viene completato quando il file (con questo contenuto o con uno scritto
+    // successivamente) è persistente
+    public CompletableFuture<Void> writeAsync(Path target, byte[] bytes) {
+        writes.increment();
+        if (maxLatencyNanos <= 0) {
+            long start = System.nanoTime();
+            try {
+                writeTemp(target, bytes);
+                syncDirectory(target.getParent());
+                return CompletableFuture.completedFuture(null);
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            } finally {
+                flushes.increment();
+                flushNanos.add(System.nanoTime() - start);
+            }
+        }
+        lock.lock();
+        try {
+            Pending entry = pending.get(target);
+            if (entry != null) {
+                entry.bytes = bytes;
+            } else {
+                entry = new Pending(bytes);
+                pending.put(target, entry);
+                if (pending.size() == 1)
+                    hasPending.signal();
+            }
+            return entry.done;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void syncLoop() {
+        while (true) {
+            Map<Path, Pending> batch;
+            lock.lock();
+            try {
+                while (pending.isEmpty())
+                    hasPending.awaitUninterruptibly();
+                // la prima scrittura attende al più maxLatencyNanos che se ne aggiungano altre
+                long deadline = System.nanoTime() + maxLatencyNanos;
+                long remaining;
+                while ((remaining = deadline - System.nanoTime()) > 0)
+                    hasPending.awaitNanos(remaining);
+                batch = pending;
+                pending = new LinkedHashMap<>();
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            flush(batch);
+        }
+    }
+
+    // Scrive e rinomina i file del batch, poi esegue un fsync per ogni directory coinvolta
+    private void flush(Map<Path, Pending> batch) {
+        long start = System.nanoTime();
+        Set<Path> directories = ConcurrentHashMap.newKeySet();
+        Map<Path, Pending> written = new ConcurrentHashMap<>();
+        // gli fsync di file diversi procedono in parallelo
+        List<CompletableFuture<Void>> tasks = new ArrayList<>(batch.size());
+        for (Map.Entry<Path, Pending> entry : batch.entrySet()) {
+            tasks.add(CompletableFuture.runAsync(() -> {
+                try {
+                    writeTemp(entry.getKey(), entry.getValue().bytes);
+                    directories.add(entry.getKey().getParent());
+                    written.put(entry.getKey(), entry.getValue());
+                } catch (IOException e) {
+                    entry.getValue().done.completeExceptionally(e);
+                }
+            }, syncers));
+        }
+        CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+        Map<Path, IOException> failedDirectories = new HashMap<>();
+        for (Path directory : directories) {
+            try {
+                syncDirectory(directory);
+            } catch (IOException e) {
+                failedDirectories.put(directory, e);
+            }
+        }
+        for (Map.Entry<Path, Pending> entry : written.entrySet()) {
+            IOException e = failedDirectories.get(entry.getKey().getParent());
+            if (e == null)
+                entry.getValue().done.complete(null);
+            else
+                entry.getValue().done.completeExceptionally(e);
+        }
+        flushes.increment();
+        flushNanos.add(System.nanoTime() - start);
+    }
+
+    // Scrive bytes in un file temporaneo accanto a target, ne esegue l'fsync e lo rinomina sopra target
+    private void writeTemp(Path target, byte[] bytes) throws IOException {
+        Path directory = target.getParent();
+        Files.createDirectories(directory);
+        Path tmp = Files.createTempFile(directory, target.getFileName().toString(), TEMP_SUFFIX);
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+                channel.force(false);
+            }
+            fsyncs.increment();
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        filesWritten.increment();
+        bytesWritten.add(bytes.length);
+    }
+
+    // Cancella i file temporanei rimasti sotto root da scritture interrotte da un crash. Va chiamato prima di scrivere
+    public static void removeTemporaryFiles(Path root) throws IOException {
+        List<Path> stale;
+        try (Stream<Path> walk = Files.walk(root)) {
+            stale = walk.filter(p -> p.getFileName().toString().endsWith(TEMP_SUFFIX))
+                    .filter(Files::isRegularFile)
+                    .collect(Collectors.toList());
+        }
+        for (Path tmp : stale)
+            Files.deleteIfExists(tmp);
+        if (!stale.isEmpty())
+            System.out.println("Removed " + stale.size() + " temporary files left in " + root);
+    }
+
+    // Rende persistente la rename. Non tutti i sistemi permettono di aprire una directory: in quel caso si rinuncia
+    private void syncDirectory(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+            fsyncs.increment();
+        } catch (AccessDeniedException | UnsupportedOperationException ignored) {
+
+        }
+    }
+
+    public long getWriteCount() {
+        return writes.sum();
+    }
+
+    public String toString() {
+        long count = Math.max(1, flushes.sum());
+        return String.format("Storage: %d writes, %d files written (%d coalesced), %d fsyncs, %.1f KiB, %.1f writes per flush, avg flush %.1f ms, max latency %d ms.",
+                writes.sum(), filesWritten.sum(), writes.sum() - filesWritten.sum(), fsyncs.sum(), bytesWritten.sum() / 1024.0,
+                writes.sum() / (double) count, flushNanos.sum() / 1e6 / count, TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos));
+    }
+}
@@ -1,7 +1,8 @@
 package server;
 
+import exceptions.GenericServerErrorException;
 import exceptions.ProtocolException;
-import protocol.Message;
+import protocol.SocketConnection;
 import protocol.request.Request;
 import protocol.response.ExceptionResponse;
 import protocol.response.Response;
@@ -9,6 +10,7 @@ import protocol.response.Response;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InvalidClassException;
+import java.io.UncheckedIOException;
 import java.net.Socket;
 
 /*
@@ -16,27 +18,45 @@ import java.net.Socket;
  */
 public class ClientHandler implements Runnable {
     private Socket client;
+    private SocketConnection connection;
+    // byte già letti dalla connessione prima di affidarla a questo handler
+    private final byte[] prefix;
 
     public ClientHandler(Socket client) {
+        this(client, new byte[0]);
+    }
+
+    public ClientHandler(Socket client, byte[] prefix) {
         this.client = client;
+        this.prefix = prefix;
     }
 
     private void trySendExceptionResponse(Exception e) {
+        // la connessione non esiste se è fallita la sua creazione
+        if (connection == null) {
+            System.err.println("Could not inform client about error.");
+            return;
+        }
         Response response = new ExceptionResponse(e);
         try {
-            response.send(client);
+            connection.send(response);
         } catch (IOException ex) {
             System.err.println("Could not inform client about error.");
         }
     }
 
+    // Chiude la connessione, se è stata creata, così gli utenti che vi erano collegati smettono di usarla
     private void clientDisconnect() {
         try {
             System.out.println("Client disconnected " + client.getRemoteSocketAddress().toString());
-            client.close();
+            if (connection != null)
+                connection.close();
+            else
+                client.close();
         } catch (IOException ex) {
             ex.printStackTrace();
         }
+        AdmissionControl.getInstance().connectionClosed();
     }
 
     public Socket getClient() {
@@ -46,18 +66,27 @@ public class ClientHandler implements Runnable {
     @Override
     public void run() {
         try {
+            connection = new SocketConnection(client, prefix);
+            connection.acceptHandshake();
             while (true) {
+                Request request = null;
                 try {
-                    Request request = (Request) Message.receive(client);
+                    request = (Request) connection.receive();
                     System.out.println(request.getClass().getSimpleName() + " received: " + request.toString());
-                    Response response = request.process(client);
-                    response.send(client);
+                    AdmissionControl.getInstance().admit(request);
+                    Response response = request.process(connection);
+                    connection.send(request.reply(response));
                 } catch (ClassNotFoundException | InvalidClassException e) {
                     System.err.println("Dropping unknown packet received from " + client.getRemoteSocketAddress().toString() + ".");
                     trySendExceptionResponse(e);
                 } catch (ProtocolException e) {
                     ExceptionResponse response = new ExceptionResponse(e);
-                    response.send(client);
+                    connection.send(request.reply(response));
+                } catch (UncheckedIOException e) {
+                    // il testo di una sezione non può essere letto da disco. Le risposte vengono codificate prima di
+                    // scriverne qualsiasi byte, quindi la connessione resta utilizzabile
+                    ExceptionResponse response = new ExceptionResponse(new GenericServerErrorException(e.getMessage()));
+                    connection.send(request.reply(response));
                 }
             }
         } catch (EOFException e) {
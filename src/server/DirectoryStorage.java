@@ -0,0 +1,72 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/*
+ * Storage originale di Turing: una cartella per utente, una per documento e un file per ogni chiave.
+ * Le scritture passano da AtomicFileWriter.
+ */
+public class DirectoryStorage implements Storage {
+    private final Path base;
+
+    public DirectoryStorage(Path base) throws IOException {
+        this.base = base;
+        Files.createDirectories(base);
+        AtomicFileWriter.removeTemporaryFiles(base);
+    }
+
+    private Path resolve(String key) {
+        return key.isEmpty() ? base : base.resolve(key);
+    }
+
+    @Override
+    public byte[] read(String key) throws IOException {
+        return Files.readAllBytes(resolve(key));
+    }
+
+    @Override
+    public void write(String key, byte[] value) throws IOException {
+        AtomicFileWriter.getInstance().write(resolve(key), value);
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAsync(String key, byte[] value) {
+        return AtomicFileWriter.getInstance().writeAsync(resolve(key), value);
+    }
+
+    @Override
+    public long size(String key) throws IOException {
+        return Files.size(resolve(key));
+    }
+
+    @Override
+    public List<String> listFolders(String folder) throws IOException {
+        try (Stream<Path> list = Files.list(resolve(folder))) {
+            return list.filter(Files::isDirectory).map(p -> p.getFileName().toString()).collect(Collectors.toList());
+        }
+    }
+
+    @Override
+    public List<String> listFiles(String folder) throws IOException {
+        try (Stream<Path> list = Files.list(resolve(folder))) {
+            return list.filter(Files::isRegularFile).map(p -> p.getFileName().toString()).collect(Collectors.toList());
+        }
+    }
+
+    @Override
+    public Path localFile(String key) {
+        return resolve(key);
+    }
+
+    // AtomicFileWriter sostituisce il file a ogni scrittura
+    @Override
+    public Region region(String key) {
+        return new Region(resolve(key), 0, -1, true);
+    }
+}
@@ -1,17 +1,20 @@
 package server;
 
 import exceptions.*;
+import protocol.BinaryCodec;
 import protocol.DocumentUri;
 
-import java.io.IOException;
-import java.io.Serializable;
+import java.io.*;
 import java.net.InetAddress;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
-import java.nio.file.Path;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 import java.util.stream.Collectors;
 
 /*
@@ -25,67 +28,146 @@ public class Document implements Serializable {
     // Proprietario del documento
     public final User owner;
     // insieme dei collaboratori del documento. Va mantenuta la coerenza con User.collaboratingOn
-    private Set<User> collaborators;
-    // Array di sezioni
-    private DocumentSection[] sections;
+    // Non viene mai modificato: ogni cambiamento pubblica una copia, così i controlli dei permessi non usano lock
+    private volatile Set<User> collaborators;
+    // Array di sezioni. Il numero di sezioni non cambia mai, ogni sezione protegge il proprio testo
+    private final DocumentSection[] sections;
     // Indirizzo multicast della chat assegnato a questo documento. Può essere null se la chat non è ancora stata aperta
     private transient InetAddress chatAddress;
+    // numero, dimensione e versione delle sezioni salvate su disco. Null nelle copie ricevute dal client
+    private final transient DocumentManifest manifest;
     // Contatore delle sezioni bloccate
-    private transient int lockedSectionsCounter = 0;
+    private final transient AtomicInteger lockedSectionsCounter = new AtomicInteger();
+    // protegge l'indirizzo della chat; in scrittura anche le modifiche ai collaboratori
+    private final StampedLock lock = new StampedLock();
+    // ordina le scritture di collaborators.txt, senza bloccare chi legge il documento
+    private final ReentrantLock collaboratorsFileLock = new ReentrantLock();
 
-    private Document(DocumentUri uri, User owner, int sections) {
+    // Forma serializzata dei client che usano ancora la serializzazione Java, in cui lock era un ReentrantLock
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("uri", DocumentUri.class),
+            new ObjectStreamField("owner", User.class),
+            new ObjectStreamField("collaborators", Set.class),
+            new ObjectStreamField("sections", DocumentSection[].class),
+            new ObjectStreamField("lock", ReentrantLock.class),
+    };
+
+    private Document(DocumentUri uri, User owner, DocumentManifest manifest) {
         this.uri = uri;
         this.owner = owner;
         if (!uri.owner.equals(owner.getName()))
             throw new IllegalArgumentException();
         this.collaborators = new HashSet<>();
-        this.sections = new DocumentSection[sections];
+        this.sections = new DocumentSection[manifest.getSectionsCount()];
+        this.manifest = manifest;
     }
 
-    // Crea un nuovo documento creando l'apposita struttura di directory.
+    // Copia di un documento ricevuta dal client: non conosce il proprietario né i collaboratori
+    private Document(DocumentUri uri, DocumentSection[] sections) {
+        this.uri = uri;
+        this.owner = null;
+        this.collaborators = new HashSet<>();
+        this.sections = sections;
+        this.manifest = null;
+    }
+
+    // Crea un nuovo documento creando l'apposita struttura di directory e il manifest
     public static Document create(DocumentUri uri, User owner, int sections) {
-        Document newDoc = new Document(uri, owner, sections);
+        Document newDoc = new Document(uri, owner, DocumentManifest.create(PermanentStorage.key(uri), sections));
+        CompletableFuture<?>[] writes = new CompletableFuture<?>[newDoc.sections.length];
         for (int i = 0; i < newDoc.sections.length; i++) {
-            newDoc.sections[i] = new DocumentSection(uri.withSection(i));
-            try {
-                newDoc.sections[i].save();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            newDoc.sections[i] = DocumentSection.empty(uri.withSection(i));
+            writes[i] = newDoc.sections[i].saveAsync();
+        }
+        try {
+            CompletableFuture.allOf(writes).join();
+            newDoc.manifest.save();
+        } catch (CompletionException | IOException e) {
+            e.printStackTrace();
         }
         return newDoc;
     }
 
-    // Carica tutte le sezioni da disco
-    public static Document load(DocumentUri uri, User owner, int sections) {
-        Document newDoc = new Document(uri, owner, sections);
+    // Registra un documento presente su disco senza leggerne le sezioni, che vengono caricate al primo accesso
+    public static Document load(DocumentUri uri, User owner, DocumentManifest manifest) {
+        Document newDoc = new Document(uri, owner, manifest);
         for (int i = 0; i < newDoc.sections.length; i++) {
-            newDoc.sections[i] = DocumentSection.loadOrCreate(uri.withSection(i));
+            newDoc.sections[i] = DocumentSection.lazy(uri.withSection(i));
         }
         return newDoc;
     }
 
     // Salva tutte le sezioni su discp
-    public synchronized void save() throws IOException {
+    public void save() throws IOException {
         for (DocumentSection section : this.sections) {
             section.save();
         }
     }
 
-    // Carica l'insieme di collaboratori salvati su disco
-    public synchronized void loadCollaborators() {
-        Path collaboratorsPath = this.uri.getPath().resolve("collaborators.txt");
+    // Riscrive il file della sezione con il testo scritto nel WriteAheadLog e ne aggiorna dimensione e versione nel
+    // manifest. Eseguito in background dal WriteAheadLog
+    public void materialize(int section) throws IOException {
+        long size = sections[section].materialize();
+        if (size >= 0)
+            manifest.sectionSaved(section, size);
+    }
+
+    // Testo di una sezione recuperato dal WriteAheadLog all'avvio
+    void restoreSection(int section, byte[] text) {
+        sections[section].restore(text);
+    }
+
+    // Scrive identificatore e sezioni del documento per BinaryCodec
+    public void write(DataOutputStream out) throws IOException {
+        uri.write(out);
+        out.writeInt(sections.length);
+        for (DocumentSection section : sections)
+            section.writeText(out);
+    }
+
+    public static Document read(DataInputStream in) throws IOException {
+        DocumentUri uri = DocumentUri.read(in);
+        DocumentSection[] sections = new DocumentSection[in.readInt()];
+        for (int i = 0; i < sections.length; i++)
+            sections[i] = new DocumentSection(uri.withSection(i), BinaryCodec.readBytes(in));
+        return new Document(uri, sections);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("uri", uri);
+        fields.put("owner", owner);
+        fields.put("collaborators", collaborators);
+        fields.put("sections", sections);
+        fields.put("lock", new ReentrantLock());
+        out.writeFields();
+    }
+
+    // Una copia deserializzata diventa una copia lato client, con i propri lock
+    private Object readResolve() {
+        return new Document(uri, sections);
+    }
+
+    // Carica l'insieme di collaboratori salvati su disco, cercandoli tra gli utenti di state
+    public void loadCollaborators(State state) {
+        String collaboratorsKey = manifest.getAclKey();
         try {
-            this.collaborators = Files.readAllLines(collaboratorsPath, StandardCharsets.UTF_8).stream()
-                    .map(c -> State.getInstance().getUserOrNull(c))
-                    .collect(Collectors.toSet());
-            System.out.println(this.uri + " can be accessed by " + this.collaborators);
-            for (User collaborator : collaborators) {
+            Set<User> loaded = new String(PermanentStorage.get().read(collaboratorsKey), StandardCharsets.UTF_8).lines()
+                    .map(c -> state.getUserOrNull(c))
+                    .collect(Collectors.toCollection(HashSet::new));
+            long stamp = lock.writeLock();
+            try {
+                this.collaborators = loaded;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            System.out.println(this.uri + " can be accessed by " + loaded);
+            for (User collaborator : loaded) {
                 collaborator.queueInvite(new Invite(this, collaborator));
             }
         } catch (NoSuchFileException e) {
             try {
-                Files.createFile(collaboratorsPath);
+                PermanentStorage.get().write(collaboratorsKey, new byte[0]);
             } catch (IOException ex) {
                 ex.printStackTrace();
             }
@@ -94,7 +176,7 @@ public class Document implements Serializable {
         }
     }
 
-    public synchronized DocumentSection getSection(int section) throws DocumentSectionNotFoundException {
+    public DocumentSection getSection(int section) throws DocumentSectionNotFoundException {
         try {
             return sections[section];
         } catch (ArrayIndexOutOfBoundsException e) {
@@ -102,8 +184,12 @@ public class Document implements Serializable {
         }
     }
 
+    public int getSectionsCount() {
+        return sections.length;
+    }
+
     // Restituisce l'intero testo del documento concatenando il testo di tutte le sezioni.
-    public synchronized String getFullText() {
+    public String getFullText() {
         StringBuilder sb = new StringBuilder();
         for (DocumentSection s : sections) {
             sb.append(s.getText());
@@ -124,57 +210,110 @@ public class Document implements Serializable {
     }
 
     // Restituisce true se il richiedente è abilitato
-    public synchronized boolean isAllowed(User requester) {
+    public boolean isAllowed(User requester) {
         if (requester == this.owner)
             return true;
         return collaborators.contains(requester);
     }
 
     // Invita un collaboratore e lo aggiunge a collaborators.txt
-    public synchronized void inviteCollaborator(User collaborator) {
-        this.collaborators.add(collaborator);
-        Path collaboratorsPath = uri.getPath().resolve("collaborators.txt");
-        Iterable<String> collaborators = this.collaborators.stream().map(c -> c.getName()).collect(Collectors.toList());
+    public void inviteCollaborator(User collaborator) {
+        addCollaborator(collaborator);
+        saveCollaborators();
+    }
+
+    // Invita un collaboratore senza aggiornare collaborators.txt. Permette di salvare una sola volta più inviti
+    // sullo stesso documento chiamando poi saveCollaborators
+    public void addCollaborator(User collaborator) {
+        long stamp = lock.writeLock();
         try {
-            Files.writeString(collaboratorsPath, String.join("\r\n", collaborators), StandardCharsets.UTF_8);
-        } catch (IOException e) {
-            e.printStackTrace();
+            Set<User> updated = new HashSet<>(this.collaborators);
+            updated.add(collaborator);
+            this.collaborators = updated;
+        } finally {
+            lock.unlockWrite(stamp);
         }
         collaborator.queueInvite(new Invite(this, collaborator));
     }
 
-    // Blocca la sezione specificata controllando se l'editor sta già modificando un altra sezione
-    public synchronized DocumentSection lockSection(User editor, int section) throws DocumentSectionNotFoundException, DocumentSectionLockedException, UserAlreadyEditingException {
-        if (editor.isEditing())
-            throw new UserAlreadyEditingException("User " + editor.getName() + " is already editing " + editor.editing);
+    // Salva l'insieme dei collaboratori in collaborators.txt. L'insieme viene letto dopo aver preso il lock del file,
+    // così l'ultima scrittura contiene sempre anche l'ultimo collaboratore aggiunto
+    public void saveCollaborators() {
+        collaboratorsFileLock.lock();
+        try {
+            Iterable<String> collaborators = this.collaborators.stream().map(c -> c.getName()).collect(Collectors.toList());
+            try {
+                PermanentStorage.get().write(manifest.getAclKey(), String.join("\r\n", collaborators).getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } finally {
+            collaboratorsFileLock.unlock();
+        }
+    }
+
+    // Blocca la sezione specificata controllando se l'editor sta già modificando un altra sezione.
+    // Utente e sezione vengono bloccati con due compare-and-set, senza lock del documento: modifiche di sezioni diverse
+    // procedono in parallelo
+    public DocumentSection lockSection(User editor, int section) throws DocumentSectionNotFoundException, DocumentSectionLockedException, UserAlreadyEditingException {
         DocumentSection documentSection = this.getSection(section);
-        documentSection.setCurrentEditor(editor);
-        this.owner.editing = documentSection.getUri();
-        this.lockedSectionsCounter++;
+        if (!editor.startEditing(documentSection.getUri()))
+            throw new UserAlreadyEditingException("User " + editor.getName() + " is already editing " + editor.editing);
+        try {
+            documentSection.lock(editor);
+        } catch (DocumentSectionLockedException e) {
+            editor.stopEditing(documentSection.getUri());
+            throw e;
+        }
+        this.lockedSectionsCounter.incrementAndGet();
         return documentSection;
     }
 
-    // Restituisce l'IP assegnato alla chat di questo documento
-    public synchronized InetAddress getChatAddress() {
-        if (this.chatAddress != null)
+    // Restituisce l'IP assegnato alla chat di questo documento. Una volta aperta la chat basta una lettura ottimistica
+    public InetAddress getChatAddress() {
+        long stamp = lock.tryOptimisticRead();
+        InetAddress address = this.chatAddress;
+        if (address != null && lock.validate(stamp))
+            return address;
+        stamp = lock.writeLock();
+        try {
+            if (this.chatAddress == null)
+                this.chatAddress = ChatRoomAdressesManager.getInstance().openChatRoom();
             return this.chatAddress;
-        this.chatAddress = ChatRoomAdressesManager.getInstance().openChatRoom();
-        return this.chatAddress;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
     }
 
     // Sblocca la sezione specificata dopo averne modificato il testo. Se tutte le sezioni di questo documento vengono
     // sbloccate, rilascia l'idirizzo assegnato
-    public synchronized void unlockSection(User editor, String editedText, int section) throws DocumentSectionNotFoundException,
+    // Il testo viene scritto nel WriteAheadLog tenendo solo il lock della sezione: chi legge il documento non attende
+    // la scrittura su disco. Il file della sezione viene riscritto in background
+    public void unlockSection(User editor, byte[] editedText, int section) throws DocumentSectionNotFoundException,
             DocumentSectionLockedException, DocumentSectionNotLockedException, GenericServerErrorException {
         DocumentSection documentSection = this.getSection(section);
         documentSection.setText(editor, editedText);
-        documentSection.setCurrentEditor(null);
-        this.owner.editing = null;
-        if (this.lockedSectionsCounter > 0)
-            this.lockedSectionsCounter--;
-        if (this.lockedSectionsCounter == 0) {
-            ChatRoomAdressesManager.getInstance().closeChatRoom(this.chatAddress);
-            this.chatAddress = null;
+        WriteAheadLog.getInstance().materializeLater(this, section);
+        releaseSection(editor, section);
+    }
+
+    // Sblocca la sezione senza modificarne il testo. Usato anche quando scade la sessione di chi la stava modificando
+    public void releaseSection(User editor, int section) throws DocumentSectionNotFoundException,
+            DocumentSectionLockedException, DocumentSectionNotLockedException {
+        DocumentSection documentSection = this.getSection(section);
+        documentSection.unlock(editor);
+        editor.stopEditing(documentSection.getUri());
+        if (this.lockedSectionsCounter.decrementAndGet() > 0)
+            return;
+        // nel frattempo un'altra sezione potrebbe essere stata bloccata: si ricontrolla tenendo il lock della chat
+        long stamp = lock.writeLock();
+        try {
+            if (this.lockedSectionsCounter.get() == 0 && this.chatAddress != null) {
+                ChatRoomAdressesManager.getInstance().closeChatRoom(this.chatAddress);
+                this.chatAddress = null;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
         }
     }
 
@@ -1,8 +1,13 @@
 package server;
 
+import protocol.BinaryCodec;
 import protocol.DocumentUri;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.HashSet;
 import java.util.Set;
 
 /*
@@ -19,6 +24,23 @@ public class DocumentInfo implements Serializable {
         this.collaborators = collaborators;
     }
 
+    // Scrive le informazioni per BinaryCodec
+    public void write(DataOutputStream out) throws IOException {
+        uri.write(out);
+        out.writeInt(collaborators.size());
+        for (String collaborator : collaborators)
+            BinaryCodec.writeString(out, collaborator);
+    }
+
+    public static DocumentInfo read(DataInputStream in) throws IOException {
+        DocumentUri uri = DocumentUri.read(in);
+        int size = in.readInt();
+        Set<String> collaborators = new HashSet<>(size);
+        for (int i = 0; i < size; i++)
+            collaborators.add(BinaryCodec.readString(in));
+        return new DocumentInfo(uri, collaborators);
+    }
+
     @Override
     public String toString() {
         return this.uri.docName + "\n\tCreatore: " + this.uri.owner + "\n\tCollaboratori: " + String.join(", ", this.collaborators);
@@ -0,0 +1,141 @@
+package server;
+
+import java.io.*;
+import java.nio.file.NoSuchFileException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/*
+ * Manifest binario di un documento, salvato in manifest.bin nella sua cartella. Contiene numero, dimensione e
+ * versione delle sezioni e il nome del file con la lista dei collaboratori: all'avvio basta una lettura per
+ * registrare il documento, senza elencare la cartella.
+ * Formato: magic "TDMF", versione del formato, numero di sezioni, per ogni sezione dimensione in byte e versione
+ * (numero di salvataggi), infine il nome del file dei collaboratori.
+ */
+public class DocumentManifest {
+    public static final String FILE_NAME = "manifest.bin";
+    public static final String DEFAULT_ACL_FILE = "collaborators.txt";
+
+    private static final int MAGIC = 0x54444D46;
+    private static final int FORMAT = 1;
+    // file delle sezioni, gli unici da contare quando manca il manifest
+    private static final Pattern SECTION_FILE = Pattern.compile("\\d+\\.txt");
+
+    // chiave della cartella del documento in Storage
+    private final String folder;
+    // dimensione in byte di ogni sezione
+    private final long[] sizes;
+    // numero di salvataggi di ogni sezione
+    private final long[] versions;
+    // file con la lista dei collaboratori, relativo alla directory del documento
+    private final String aclFile;
+    // protegge dimensioni e versioni e ordina le scritture del manifest
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private DocumentManifest(String folder, long[] sizes, long[] versions, String aclFile) {
+        this.folder = folder;
+        this.sizes = sizes;
+        this.versions = versions;
+        this.aclFile = aclFile;
+    }
+
+    // Manifest di un documento nuovo, con sezioni vuote
+    public static DocumentManifest create(String folder, int sections) {
+        return new DocumentManifest(folder, new long[sections], new long[sections], DEFAULT_ACL_FILE);
+    }
+
+    // Legge il manifest con un solo accesso al disco. Lancia NoSuchFileException se il documento non ne ha uno
+    public static DocumentManifest read(String folder) throws IOException {
+        byte[] bytes = PermanentStorage.get().read(folder + "/" + FILE_NAME);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != MAGIC || in.readUnsignedByte() != FORMAT)
+            throw new StreamCorruptedException("Invalid manifest " + folder);
+        int sections = in.readInt();
+        if (sections < 0 || sections > (bytes.length - 9) / 16)
+            throw new StreamCorruptedException("Invalid section count " + sections + " in manifest " + folder);
+        long[] sizes = new long[sections];
+        long[] versions = new long[sections];
+        for (int i = 0; i < sections; i++) {
+            sizes[i] = in.readLong();
+            versions[i] = in.readLong();
+        }
+        return new DocumentManifest(folder, sizes, versions, in.readUTF());
+    }
+
+    // Ricostruisce il manifest di un documento salvato prima dei manifest, contando solo i file N.txt: gli altri file
+    // della directory (collaborators.txt) non sono sezioni
+    public static DocumentManifest scan(String folder) throws IOException {
+        Storage storage = PermanentStorage.get();
+        int sections = (int) storage.listFiles(folder).stream().filter(name -> SECTION_FILE.matcher(name).matches()).count();
+        DocumentManifest manifest = create(folder, sections);
+        for (int i = 0; i < sections; i++) {
+            try {
+                manifest.sizes[i] = storage.size(folder + "/" + i + ".txt");
+            } catch (NoSuchFileException ignored) {
+
+            }
+        }
+        return manifest;
+    }
+
+    public int getSectionsCount() {
+        return sizes.length;
+    }
+
+    public long getSize(int section) {
+        lock.lock();
+        try {
+            return sizes[section];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getVersion(int section) {
+        lock.lock();
+        try {
+            return versions[section];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // chiave del file con la lista dei collaboratori
+    public String getAclKey() {
+        return folder + "/" + aclFile;
+    }
+
+    // Registra un salvataggio della sezione e riscrive il manifest
+    public void sectionSaved(int section, long size) throws IOException {
+        lock.lock();
+        try {
+            sizes[section] = size;
+            versions[section]++;
+            save();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Scrive il manifest in Storage: dopo un crash resta la versione precedente o quella nuova, mai un
+    // manifest scritto a metà
+    public void save() throws IOException {
+        lock.lock();
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + sizes.length * 16);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeByte(FORMAT);
+            out.writeInt(sizes.length);
+            for (int i = 0; i < sizes.length; i++) {
+                out.writeLong(sizes[i]);
+                out.writeLong(versions[i]);
+            }
+            out.writeUTF(aclFile);
+            out.flush();
+            PermanentStorage.get().write(folder + "/" + FILE_NAME, bytes.toByteArray());
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -3,14 +3,17 @@ package server;
 import exceptions.DocumentSectionLockedException;
 import exceptions.DocumentSectionNotLockedException;
 import exceptions.GenericServerErrorException;
+import protocol.BinaryCodec;
 import protocol.DocumentUri;
 
-import java.io.IOException;
-import java.io.Serializable;
+import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
 
 /*
  * Sezione di un documento Turing
@@ -18,12 +21,36 @@ import java.nio.file.StandardOpenOption;
 public class DocumentSection implements Serializable {
     private static final long serialVersionUID = 1L;
 
-    // testo della sezione
-    private String text = "";
-    // utente che sta bloccando la sezione
-    private User currentEditor;
+    private static final byte[] EMPTY = new byte[0];
+
+    // testo della sezione in UTF-8, come nel file e nei messaggi. Viene letto senza lock e l'array non viene mai
+    // modificato: ogni modifica ne assegna uno nuovo. È null finché non viene caricato da disco (vedi getBytes)
+    private transient volatile byte[] text = EMPTY;
+    // false se il testo è stato modificato e scritto nel log ma il file della sezione non è ancora stato riscritto
+    private transient volatile boolean materialized = true;
+    // incrementato ogni volta che il file della sezione viene riscritto, identifica le mappature aggiornate
+    private transient volatile long fileVersion;
+    // true per le sezioni salvate in Storage dal server, il cui testo può essere scartato da SectionCache
+    private transient boolean cached;
+    // impostato senza lock a ogni lettura dalla memoria, consumato da SectionCache quando sceglie le sezioni da scartare
+    transient volatile boolean referenced;
+    // utente che sta bloccando la sezione. Viene acquisita e rilasciata con un compare-and-set, senza lock
+    private volatile User currentEditor;
     // identificatore della sezione
     private DocumentUri uri;
+    // ordina le modifiche del testo e i salvataggi su disco
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private static final AtomicReferenceFieldUpdater<DocumentSection, User> CURRENT_EDITOR =
+            AtomicReferenceFieldUpdater.newUpdater(DocumentSection.class, User.class, "currentEditor");
+
+    // Forma serializzata dei client che usano ancora la serializzazione Java, in cui il testo era una String
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("text", String.class),
+            new ObjectStreamField("currentEditor", User.class),
+            new ObjectStreamField("uri", DocumentUri.class),
+            new ObjectStreamField("lock", ReentrantLock.class),
+    };
 
     public DocumentSection(DocumentUri uri) {
         if (uri.section == null)
@@ -31,7 +58,38 @@ public class DocumentSection implements Serializable {
         this.uri = uri;
     }
 
+    // Sezione con un testo UTF-8 che non proviene da Storage, come le copie ricevute dal client
+    public DocumentSection(DocumentUri uri, byte[] text) {
+        this(uri);
+        this.text = text;
+        this.materialized = false;
+    }
+
+    // Restituisce il testo decodificato. Va usato solo dove serve leggere il testo: salvataggi e messaggi usano getBytes
     public String getText() {
+        return new String(getBytes(), StandardCharsets.UTF_8);
+    }
+
+    // Restituisce il testo in UTF-8, caricandolo da disco al primo accesso. L'array non va modificato
+    // Lancia UncheckedIOException se il testo non può essere letto: la sezione resta da caricare
+    public byte[] getBytes() {
+        byte[] text = this.text;
+        if (text != null) {
+            if (cached)
+                SectionCache.getInstance().hit(this);
+            return text;
+        }
+        lock.lock();
+        try {
+            if (this.text != null)
+                return this.text;
+            text = loadText();
+            this.text = text;
+        } finally {
+            lock.unlock();
+        }
+        // la cache va aggiornata senza il lock della sezione, che SectionCache prende per scartare il testo
+        SectionCache.getInstance().miss(this, SectionCache.weight(text));
         return text;
     }
 
@@ -42,79 +100,254 @@ public class DocumentSection implements Serializable {
     // imposta il testo della sezione e controlla che il richiedente abbia i permessi necessari
     // Lancia DocumentSectionNotLockedException se la sezione non è stata bloccata prima di essere modificata
     // Lancia DocumentSectionLockedException se la sezione è già stata bloccata da un'altro utente
-    // Lancia IOException se fallisce il salvataggio su disco della sezione
-    public synchronized void setText(User editor, String text) throws DocumentSectionLockedException, DocumentSectionNotLockedException, GenericServerErrorException {
-        if (currentEditor == null)
-            throw new DocumentSectionNotLockedException();
-        if (editor != currentEditor)
-            throw new DocumentSectionLockedException();
-        if (text == null)
-            throw new NullPointerException();
-        this.text = text;
+    // Lancia GenericServerErrorException se fallisce la scrittura nel log
+    // Il nuovo testo viene reso persistente nel WriteAheadLog; il file della sezione va riscritto con materialize
+    public void setText(User editor, byte[] text) throws DocumentSectionLockedException, DocumentSectionNotLockedException, GenericServerErrorException {
+        lock.lock();
         try {
-            this.save();
-        } catch (IOException e) {
-            throw new GenericServerErrorException(e.getMessage());
+            if (currentEditor == null)
+                throw new DocumentSectionNotLockedException();
+            if (editor != currentEditor)
+                throw new DocumentSectionLockedException();
+            if (text == null)
+                throw new NullPointerException();
+            try {
+                WriteAheadLog.getInstance().append(uri, text);
+            } catch (IOException e) {
+                throw new GenericServerErrorException(e.getMessage());
+            }
+            this.text = text;
+            this.materialized = false;
+        } finally {
+            lock.unlock();
         }
+        if (cached)
+            SectionCache.getInstance().put(this, SectionCache.weight(text));
     }
 
-    public synchronized User getCurrentEditor() {
+    public User getCurrentEditor() {
         return currentEditor;
     }
 
-    // Imposta l'editor corrente che blocca quasta sezione
-    public synchronized void setCurrentEditor(User currentEditor) throws DocumentSectionLockedException {
-        if (this.currentEditor == null)
-            this.currentEditor = currentEditor;
-        else
+    // Blocca la sezione per editor. Lancia DocumentSectionLockedException se è già bloccata
+    public void lock(User editor) throws DocumentSectionLockedException {
+        if (!CURRENT_EDITOR.compareAndSet(this, null, editor))
+            throw new DocumentSectionLockedException();
+    }
+
+    // Sblocca la sezione, che deve essere stata bloccata da editor
+    public void unlock(User editor) throws DocumentSectionNotLockedException, DocumentSectionLockedException {
+        if (!CURRENT_EDITOR.compareAndSet(this, editor, null)) {
             if (currentEditor == null)
-                this.currentEditor = null;
-            else
-                throw new DocumentSectionLockedException();
+                throw new DocumentSectionNotLockedException();
+            throw new DocumentSectionLockedException();
+        }
     }
 
     // restituisce true se la sezione è bloccata
-    public synchronized boolean isLocked() {
+    public boolean isLocked() {
         return currentEditor != null;
     }
 
     @Override
     public String toString() {
+        User currentEditor = this.currentEditor;
         if (currentEditor != null)
-            return "Section " + uri.section + " locked by " + currentEditor.getName() + "\n" + text;
+            return "Section " + uri.section + " locked by " + currentEditor.getName() + "\n" + getText();
         else
-            return "Section " + uri.section + " is not locked\n" + text;
+            return "Section " + uri.section + " is not locked\n" + getText();
     }
 
-    // Salva su disco la sezione
-    public synchronized void save() throws IOException {
-        Path path = this.uri.getPath();
-        Files.createDirectories(path.getParent());
-        Files.writeString(path, text, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    // Salva la sezione in Storage. Una sezione mai caricata è identica al file e non viene riscritta
+    public void save() throws IOException {
+        lock.lock();
+        try {
+            if (text == null)
+                return;
+            PermanentStorage.get().write(PermanentStorage.key(uri), text);
+            fileVersion++;
+        } finally {
+            lock.unlock();
+        }
     }
 
-    // Carica da disco la sezione
+    // Accoda il salvataggio della sezione senza attenderlo: più sezioni salvate insieme condividono gli fsync
+    public CompletableFuture<Void> saveAsync() {
+        lock.lock();
+        try {
+            if (text == null)
+                return CompletableFuture.completedFuture(null);
+            fileVersion++;
+            return PermanentStorage.get().writeAsync(PermanentStorage.key(uri), text);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Imposta il testo letto dal log all'avvio, che va poi riscritto con materialize
+    void restore(byte[] text) {
+        lock.lock();
+        try {
+            this.text = text;
+            this.materialized = false;
+        } finally {
+            lock.unlock();
+        }
+        if (cached)
+            SectionCache.getInstance().put(this, SectionCache.weight(text));
+    }
+
+    // false se il file della sezione non contiene ancora l'ultimo testo: va inviato il testo, non il file
+    public boolean isMaterialized() {
+        return materialized;
+    }
+
+    // true se il testo può essere scartato e riletto da Storage: il file è aggiornato e nessuno sta modificando la
+    // sezione
+    boolean isEvictable() {
+        return materialized && currentEditor == null;
+    }
+
+    // true se il testo è in memoria
+    boolean isLoaded() {
+        return text != null;
+    }
+
+    // Scarta il testo, che verrà riletto da Storage al prossimo accesso. Restituisce false se la sezione nel
+    // frattempo è stata bloccata o modificata
+    boolean evict() {
+        lock.lock();
+        try {
+            if (!isEvictable() || text == null)
+                return false;
+            text = null;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Riscrive il file della sezione con il testo scritto nel log. Restituisce la dimensione scritta, o -1 se il file
+    // era già aggiornato
+    public long materialize() throws IOException {
+        lock.lock();
+        try {
+            if (materialized)
+                return -1;
+            PermanentStorage.get().write(PermanentStorage.key(uri), text);
+            fileVersion++;
+            materialized = true;
+            return text.length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Scrive identificatore e testo della sezione per BinaryCodec
+    public void write(DataOutputStream out) throws IOException {
+        uri.write(out);
+        writeText(out);
+    }
+
+    // Scrive il testo come BinaryCodec.writeString. Se il file della sezione è aggiornato i byte vengono copiati da
+    // una mappatura in memoria del file (MappedSectionPool), senza leggere il file
+    public void writeText(DataOutputStream out) throws IOException {
+        if (materialized) {
+            long version = fileVersion;
+            MappedSectionPool pool = MappedSectionPool.getInstance();
+            MappedSectionPool.Mapping mapping = null;
+            Storage.Region region = null;
+            try {
+                region = PermanentStorage.get().region(PermanentStorage.key(uri));
+                long end = region.length < 0 ? 0 : region.offset + region.length;
+                mapping = pool.acquire(region.file, region.replaceable ? version : 0, end);
+            } catch (IOException e) {
+                // il file non esiste ancora (verrà creato da getBytes) o non può essere mappato, ad esempio perché
+                // sono aperti troppi file: si invia il testo
+            }
+            if (mapping != null) {
+                // se nel frattempo il file è stato riscritto la mappatura contiene comunque la versione precedente
+                try {
+                    int length = region.length < 0 ? (int) mapping.size() : region.length;
+                    mapping.writeString(out, region.offset, length);
+                    return;
+                } finally {
+                    pool.release(mapping);
+                }
+            }
+        }
+        BinaryCodec.writeBytes(out, getBytes());
+    }
+
+    public static DocumentSection read(DataInputStream in) throws IOException {
+        return new DocumentSection(DocumentUri.read(in), BinaryCodec.readBytes(in));
+    }
+
+    // La serializzazione Java invia il testo come String, anche se la sezione non è ancora stata caricata
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("text", getText());
+        fields.put("currentEditor", currentEditor);
+        fields.put("uri", uri);
+        fields.put("lock", new ReentrantLock());
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        String text = (String) fields.get("text", "");
+        this.text = text == null ? EMPTY : text.getBytes(StandardCharsets.UTF_8);
+        this.currentEditor = (User) fields.get("currentEditor", null);
+        this.uri = (DocumentUri) fields.get("uri", null);
+    }
+
+    // Una copia deserializzata diventa una copia lato client, con il proprio lock
+    private Object readResolve() {
+        DocumentSection copy = new DocumentSection(uri, text);
+        copy.currentEditor = currentEditor;
+        return copy;
+    }
+
+    // Carica la sezione dal file locale del client
     public static DocumentSection load(DocumentUri uri) throws IOException {
         Path path = uri.getPath();
-        String text = Files.readString(path, StandardCharsets.UTF_8);
         DocumentSection newSection = new DocumentSection(uri);
-        newSection.text = text;
+        newSection.text = Files.readAllBytes(path);
+        return newSection;
+    }
+
+    // Sezione di cui si conosce solo l'esistenza: il testo viene letto da disco al primo accesso
+    public static DocumentSection lazy(DocumentUri uri) {
+        DocumentSection newSection = new DocumentSection(uri);
+        newSection.text = null;
+        newSection.cached = true;
         return newSection;
     }
 
-    // Tenta di caricare la sezione da disco, se fallisce ne crea una nuova.
-    public static DocumentSection loadOrCreate(DocumentUri uri) {
+    // Sezione vuota di un documento appena creato sul server
+    public static DocumentSection empty(DocumentUri uri) {
+        DocumentSection newSection = new DocumentSection(uri);
+        newSection.cached = true;
+        SectionCache.getInstance().put(newSection, SectionCache.weight(newSection.text));
+        return newSection;
+    }
+
+    // Legge il testo da Storage. Se non esiste lo crea vuoto. Se la lettura fallisce lancia UncheckedIOException
+    // invece di restituire un testo vuoto, che verrebbe inviato al client come se fosse il contenuto della sezione
+    private byte[] loadText() {
+        Storage storage = PermanentStorage.get();
+        String key = PermanentStorage.key(uri);
         try {
-            return load(uri);
-        } catch (IOException e) {
-            Path path = uri.getPath();
+            return storage.read(key);
+        } catch (NoSuchFileException e) {
             try {
-                Files.createDirectories(path.getParent());
-                Files.createFile(path);
+                storage.write(key, EMPTY);
             } catch (IOException e2) {
                 e2.printStackTrace();
             }
-            return new DocumentSection(uri);
+            return EMPTY;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
 }
@@ -1,12 +1,10 @@
 package server;
 
+import protocol.Connection;
 import protocol.response.InviteNotification;
 
-import java.io.IOException;
-import java.net.Socket;
-
 /*
- * Rappresenta un invito pendente che non è ancora stato notificato all'utente
+ * Rappresenta un invito a collaborare su un documento, da notificare all'utente invitato
  */
 public class Invite {
     public final Document document;
@@ -17,11 +15,13 @@ public class Invite {
         this.invitedUser = invited;
     }
 
-    public void send(Socket client) throws IOException, NullPointerException {
-        System.out.println("Try to send " + toString());
+    // Accoda la notifica sulla connessione senza attendere che venga scritta
+    public boolean push(Connection client) {
         InviteNotification notification = new InviteNotification(document.getOwner().getName(), document.getName());
-        notification.send(client);
-        System.out.println("Sent " + toString());
+        boolean queued = client.push(notification);
+        if (queued)
+            System.out.println("Pushed " + toString());
+        return queued;
     }
 
     @Override
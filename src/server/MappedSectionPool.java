@@ -0,0 +1,181 @@
+package server;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Pool di file mappati in memoria in sola lettura, usato per inviare il testo delle sezioni senza leggerlo con read()
+ * e senza creare String. Ogni mappatura conta chi la sta usando: una mappatura inutilizzata da più di
+ * turing.mmapIdle secondi (default 30), o in eccesso rispetto a turing.mmapMax (default 256), viene tolta dal pool.
+ * Java non permette di rimuovere esplicitamente una mappatura: la memoria viene liberata dal garbage collector
+ * quando nessuno la usa più.
+ */
+public class MappedSectionPool {
+    // Un file mappato. version identifica il contenuto del file per chi lo sostituisce a ogni scrittura
+    public static class Mapping {
+        final Path file;
+        final long version;
+        final MappedByteBuffer buffer;
+        int refs;
+        long lastUsed;
+
+        Mapping(Path file, long version, MappedByteBuffer buffer) {
+            this.file = file;
+            this.version = version;
+            this.buffer = buffer;
+        }
+
+        public long size() {
+            return buffer.capacity();
+        }
+
+        // Scrive length byte a partire da offset come BinaryCodec.writeString: lunghezza seguita dai byte UTF-8
+        public void writeString(DataOutputStream out, long offset, int length) throws IOException {
+            byte[] chunk = CHUNK.get();
+            out.writeInt(length);
+            // la mappatura è condivisa: ogni lettura usa una propria vista con posizione e limite
+            ByteBuffer view = buffer.duplicate();
+            view.limit((int) offset + length).position((int) offset);
+            while (view.hasRemaining()) {
+                int n = Math.min(chunk.length, view.remaining());
+                view.get(chunk, 0, n);
+                out.write(chunk, 0, n);
+            }
+        }
+    }
+
+    // buffer di copia riutilizzato da ogni thread
+    private static final ThreadLocal<byte[]> CHUNK = ThreadLocal.withInitial(() -> new byte[8192]);
+
+    private static final MappedSectionPool singleton = new MappedSectionPool();
+
+    public final long idleNanos = TimeUnit.SECONDS.toNanos(Long.getLong("turing.mmapIdle", 30));
+    public final int maxMappings = Integer.getInteger("turing.mmapMax", 256);
+
+    // protegge mappings e i contatori delle mappature
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Path, Mapping> mappings = new HashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder maps = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private MappedSectionPool() {
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "mmap-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(idleNanos) / 2);
+        sweeper.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.SECONDS);
+    }
+
+    public static MappedSectionPool getInstance() {
+        return singleton;
+    }
+
+    // Restituisce una mappatura di file con la versione indicata e lunga almeno minSize byte, creandone una nuova se
+    // quella nel pool è vecchia o troppo corta. Va restituita con release
+    public Mapping acquire(Path file, long version, long minSize) throws IOException {
+        lock.lock();
+        try {
+            Mapping mapping = mappings.get(file);
+            if (mapping != null && mapping.version == version && mapping.size() >= minSize) {
+                hits.increment();
+                mapping.refs++;
+                return mapping;
+            }
+        } finally {
+            lock.unlock();
+        }
+        // la mappatura avviene senza lock: chi usa le mappature già presenti non attende
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException(file + " is too large to be mapped");
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        maps.increment();
+        Mapping mapping = new Mapping(file, version, buffer);
+        lock.lock();
+        try {
+            mapping.refs++;
+            Mapping old = mappings.get(file);
+            // un altro thread potrebbe aver mappato una versione più recente nel frattempo
+            if (old == null || old.version < version || (old.version == version && old.size() < mapping.size()))
+                mappings.put(file, mapping);
+            if (mappings.size() > maxMappings)
+                evictLeastRecentlyUsed();
+            return mapping;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release(Mapping mapping) {
+        lock.lock();
+        try {
+            mapping.refs--;
+            mapping.lastUsed = System.nanoTime();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Toglie dal pool la mappatura inutilizzata da più tempo. Va chiamato tenendo lock
+    private void evictLeastRecentlyUsed() {
+        Mapping oldest = null;
+        for (Mapping mapping : mappings.values())
+            if (mapping.refs == 0 && (oldest == null || mapping.lastUsed < oldest.lastUsed))
+                oldest = mapping;
+        if (oldest != null) {
+            mappings.remove(oldest.file);
+            evictions.increment();
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            Iterator<Mapping> it = mappings.values().iterator();
+            while (it.hasNext()) {
+                Mapping mapping = it.next();
+                if (mapping.refs == 0 && now - mapping.lastUsed > idleNanos) {
+                    it.remove();
+                    evictions.increment();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getReadCount() {
+        return hits.sum() + maps.sum();
+    }
+
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("Mapped sections: %d files mapped, %d reads from existing mappings, %d maps, %d evicted.",
+                    mappings.size(), hits.sum(), maps.sum(), evictions.sum());
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,593 @@
+package server;
+
+import exceptions.GenericServerErrorException;
+import exceptions.ProtocolException;
+import protocol.Codec;
+import protocol.Connection;
+import protocol.Message;
+import protocol.SerializationCodec;
+import protocol.request.Request;
+import protocol.response.ExceptionResponse;
+import protocol.response.Response;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/*
+ * Front end non bloccante del server TCP.
+ * Un piccolo numero di event loop, ognuno con il proprio Selector, legge i frame delle richieste e ne affida
+ * l'esecuzione ad un pool di worker. Una connessione inattiva non occupa nessun thread.
+ */
+public class NioServer {
+    // Byte in coda di uscita oltre i quali si smette di leggere le richieste della connessione, finché il client non
+    // ha letto le risposte
+    public static final int MAX_QUEUED_BYTES = 1024 * 1024;
+    // File in coda di uscita oltre i quali un worker attende prima di accodarne un altro: ogni file in coda tiene
+    // aperto un descrittore
+    public static final int MAX_QUEUED_FILES = 1;
+    // Millisecondi per cui un worker attende che un client legga le risposte prima di chiuderne la connessione
+    private static final long SEND_TIMEOUT = Long.getLong("turing.sendTimeout", 30_000);
+
+    private final int port;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private final AdmissionControl admission = AdmissionControl.getInstance();
+    // thread dei ClientHandler dei client che non usano i frame
+    private final ExecutorService unframedHandlers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "unframed-client");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public NioServer(int port, int nloops, ExecutorService workers) throws IOException {
+        this.port = port;
+        this.workers = workers;
+        this.loops = new EventLoop[nloops];
+        for (int i = 0; i < nloops; i++)
+            this.loops[i] = new EventLoop();
+    }
+
+    // Avvia gli event loop e accetta le connessioni in arrivo, distribuendole tra gli event loop
+    public void serve() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+            System.out.println("Server listening on port " + port + " (NIO, " + loops.length + " event loops)");
+            int next = 0;
+            while (true) {
+                SocketChannel client = server.accept();
+                if (!admission.tryOpenConnection()) {
+                    System.err.println("Too many connections, refusing " + client.getRemoteAddress());
+                    client.close();
+                    continue;
+                }
+                System.out.println("Client connected " + client.getRemoteAddress());
+                client.configureBlocking(false);
+                loops[next].register(client);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    /*
+     * Thread che gestisce un Selector. Tutte le operazioni sulle SelectionKey avvengono su questo thread: gli altri
+     * thread gli affidano dei task tramite execute().
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                NioConnection connection = new NioConnection(channel, this);
+                try {
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (ClosedChannelException e) {
+                    // il client se n'è già andato: close libera anche il suo posto in AdmissionControl
+                    connection.close();
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null)
+                        task.run();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable())
+                                connection.onReadable();
+                            if (key.isValid() && key.isWritable())
+                                connection.onWritable();
+                        } catch (IOException | CancelledKeyException e) {
+                            connection.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /*
+     * Un elemento della coda di uscita di una connessione
+     */
+    private interface Outgoing {
+        // Scrive quanto possibile sul canale, restituisce true quando l'elemento è stato scritto per intero
+        boolean writeTo(SocketChannel channel) throws IOException;
+
+        // Byte ancora da scrivere al momento dell'inserimento in coda, usati per il controllo di flusso
+        long size();
+
+        void release();
+    }
+
+    private static class BufferOutgoing implements Outgoing {
+        private final ByteBuffer buffer;
+
+        BufferOutgoing(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            channel.write(buffer);
+            return !buffer.hasRemaining();
+        }
+
+        @Override
+        public long size() {
+            return buffer.capacity();
+        }
+
+        @Override
+        public void release() {
+
+        }
+    }
+
+    // Porzione di file trasferita dal kernel direttamente sul socket
+    private static class FileOutgoing implements Outgoing {
+        private final FileChannel source;
+        private final long length;
+        private long position = 0;
+
+        FileOutgoing(FileChannel source, long length) {
+            this.source = source;
+            this.length = length;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            long sent = source.transferTo(position, length - position, channel);
+            position += sent;
+            // il client attende esattamente length byte: se il file si è accorciato lo stream non è più valido
+            if (sent == 0 && position < length && position >= source.size())
+                throw new EOFException("File is shorter than " + length + " bytes");
+            return position == length;
+        }
+
+        @Override
+        public long size() {
+            return length;
+        }
+
+        @Override
+        public void release() {
+            try {
+                source.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /*
+     * Stato di una connessione gestita dal selettore: buffer di lettura del frame corrente, coda dei frame in attesa
+     * di essere eseguiti e coda dei buffer in attesa di essere scritti.
+     * Le richieste di una stessa connessione vengono eseguite una alla volta e nell'ordine di arrivo.
+     */
+    private class NioConnection implements Connection {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final SocketAddress remoteAddress;
+        private SelectionKey key;
+
+        // primi byte della connessione: handshake oppure inizio del primo frame di un client che non negozia
+        private final ByteBuffer handshake = ByteBuffer.allocate(2);
+        private Codec codec;
+
+        private final ByteBuffer header = ByteBuffer.allocate(4);
+        private ByteBuffer body;
+
+        private final Queue<byte[]> pendingFrames = new ArrayDeque<>();
+        private boolean processing = false;
+
+        private final Queue<Outgoing> writeQueue = new ArrayDeque<>();
+        private long queuedBytes = 0;
+        private int queuedFiles = 0;
+        // incrementato ogni volta che il canale è scrivibile, cioè il client sta leggendo
+        private long writableEvents = 0;
+        private volatile boolean closed = false;
+        // listener registrati con onClose. Protetti, come closed, dal monitor di writeQueue
+        private final Set<Consumer<Connection>> closeListeners = new HashSet<>();
+
+        NioConnection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            this.remoteAddress = channel.socket().getRemoteSocketAddress();
+        }
+
+        // Legge tutti i byte disponibili, separando i frame completi
+        void onReadable() throws IOException {
+            if (codec == null && !readHandshake())
+                return;
+            while (true) {
+                if (body == null) {
+                    if (channel.read(header) < 0) {
+                        close();
+                        return;
+                    }
+                    if (header.hasRemaining())
+                        return;
+                    header.flip();
+                    int length = header.getInt();
+                    header.clear();
+                    if (length < 0 || length > Message.MAX_FRAME_SIZE)
+                        throw new StreamCorruptedException("Invalid frame length " + length);
+                    body = ByteBuffer.allocate(length);
+                }
+                if (channel.read(body) < 0) {
+                    close();
+                    return;
+                }
+                if (body.hasRemaining())
+                    return;
+                byte[] frame = body.array();
+                body = null;
+                enqueueFrame(frame);
+            }
+        }
+
+        // Sceglie il codec della connessione, restituisce false se non sono ancora arrivati abbastanza byte
+        private boolean readHandshake() throws IOException {
+            if (channel.read(handshake) < 0) {
+                close();
+                return false;
+            }
+            if (handshake.position() == 0)
+                return false;
+            if (handshake.get(0) == Codec.OBJECT_STREAM_MAGIC) {
+                handOffUnframed();
+                return false;
+            }
+            if (handshake.get(0) != Codec.HANDSHAKE_MAGIC) {
+                // i byte letti appartengono alla lunghezza del primo frame
+                codec = new SerializationCodec();
+                handshake.flip();
+                header.put(handshake);
+                return true;
+            }
+            if (handshake.hasRemaining())
+                return false;
+            int version = Math.min(handshake.get(1) & 0xFF, Codec.LATEST_VERSION);
+            codec = Codec.forVersion(version);
+            enqueue(new BufferOutgoing(ByteBuffer.wrap(new byte[] { (byte) version })));
+            return true;
+        }
+
+        // Un client che precede i frame non indica la lunghezza dei messaggi: viene servito da un ClientHandler
+        // bloccante, su un thread proprio, a cui vengono passati i byte già letti
+        private void handOffUnframed() {
+            handshake.flip();
+            byte[] prefix = new byte[handshake.remaining()];
+            handshake.get(prefix);
+            key.cancel();
+            // il canale torna bloccante solo dopo che la select successiva ha rimosso la chiave annullata
+            loop.execute(() -> {
+                try {
+                    channel.configureBlocking(true);
+                    unframedHandlers.execute(new ClientHandler(channel.socket(), prefix));
+                } catch (IOException e) {
+                    close();
+                }
+            });
+        }
+
+        // Scrive quanto più possibile della coda di uscita; se la coda si svuota smette di attendere OP_WRITE.
+        // Sveglia i worker in attesa in awaitCapacity se la coda si è accorciata
+        void onWritable() throws IOException {
+            synchronized (writeQueue) {
+                writableEvents++;
+                boolean drained = false;
+                while (!writeQueue.isEmpty()) {
+                    Outgoing outgoing = writeQueue.peek();
+                    if (!outgoing.writeTo(channel))
+                        break;
+                    writeQueue.remove();
+                    outgoing.release();
+                    queuedBytes -= outgoing.size();
+                    if (outgoing instanceof FileOutgoing)
+                        queuedFiles--;
+                    drained = true;
+                }
+                if (drained)
+                    writeQueue.notifyAll();
+                key.interestOps(interestOps());
+            }
+        }
+
+        // Operazioni da attendere sul canale. Un client che non legge le risposte non può inviare altre richieste
+        // finché la sua coda di uscita non scende sotto MAX_QUEUED_BYTES: nessun worker resta bloccato ad attenderlo.
+        // Va chiamato tenendo il monitor di writeQueue
+        private int interestOps() {
+            int ops = 0;
+            if (!writeQueue.isEmpty())
+                ops |= SelectionKey.OP_WRITE;
+            if (queuedBytes <= MAX_QUEUED_BYTES)
+                ops |= SelectionKey.OP_READ;
+            return ops;
+        }
+
+        private void enqueueFrame(byte[] frame) {
+            boolean full;
+            synchronized (pendingFrames) {
+                full = pendingFrames.size() >= admission.maxInFlight;
+                if (!full) {
+                    pendingFrames.add(frame);
+                    if (processing)
+                        return;
+                    processing = true;
+                }
+            }
+            if (full)
+                rejectFrame(frame);
+            else
+                workers.execute(this::processPending);
+        }
+
+        // Risponde subito, dall'event loop, a una richiesta che eccede maxInFlight. Se il client non legge nemmeno
+        // le risposte la connessione viene chiusa
+        private void rejectFrame(byte[] frame) {
+            ExceptionResponse response = new ExceptionResponse(admission.rejectInFlight());
+            try {
+                response.setRequestID(codec.decode(frame).getRequestID());
+            } catch (IOException | ClassNotFoundException ignored) {
+
+            }
+            boolean full;
+            synchronized (writeQueue) {
+                full = queuedBytes > MAX_QUEUED_BYTES;
+            }
+            if (full || !push(response))
+                close();
+        }
+
+        // Eseguito dai worker: processa in ordine i frame accodati finché ce ne sono
+        private void processPending() {
+            while (true) {
+                byte[] frame;
+                synchronized (pendingFrames) {
+                    frame = pendingFrames.poll();
+                    if (frame == null || closed) {
+                        processing = false;
+                        return;
+                    }
+                }
+                dispatch(frame);
+            }
+        }
+
+        private void dispatch(byte[] frame) {
+            try {
+                Request request = null;
+                try {
+                    request = (Request) codec.decode(frame);
+                    System.out.println(request.getClass().getSimpleName() + " received: " + request.toString());
+                    admission.admit(request);
+                    Response response = request.process(this);
+                    send(request.reply(response));
+                } catch (ClassNotFoundException | InvalidClassException e) {
+                    System.err.println("Dropping unknown packet received from " + remoteAddress + ".");
+                    send(new ExceptionResponse(e));
+                } catch (ProtocolException e) {
+                    send(request.reply(new ExceptionResponse(e)));
+                } catch (UncheckedIOException e) {
+                    // il testo di una sezione non può essere letto da disco. La risposta non è stata accodata perché
+                    // viene codificata per intero prima
+                    send(request.reply(new ExceptionResponse(new GenericServerErrorException(e.getMessage()))));
+                }
+            } catch (IOException e) {
+                close();
+            } catch (Exception e) {
+                e.printStackTrace();
+                try {
+                    send(new ExceptionResponse(e));
+                } catch (IOException ex) {
+                    System.err.println("Could not inform client about error.");
+                }
+                close();
+            }
+        }
+
+        // Accoda il frame e chiede all'event loop di scriverlo appena il canale è scrivibile. Se la coda supera
+        // MAX_QUEUED_BYTES attende che il client legga (vedi awaitCapacity). Va chiamato solo dai worker
+        @Override
+        public void send(Message msg) throws IOException {
+            awaitCapacity(false);
+            enqueue(new BufferOutgoing(encodeFrame(msg)));
+        }
+
+        // Il file viene trasferito con transferTo dall'event loop quando il canale è scrivibile. Se in coda c'è già
+        // un file attende che venga trasferito, così una richiesta con molte sezioni non apre un file per ognuna
+        @Override
+        public void sendFile(Message header, FileChannel source, long length) throws IOException {
+            try {
+                awaitCapacity(true);
+            } catch (IOException e) {
+                source.close();
+                throw e;
+            }
+            enqueue(new BufferOutgoing(encodeFrame(header)), new FileOutgoing(source, length));
+        }
+
+        // Attende che la coda di uscita scenda sotto MAX_QUEUED_BYTES e, se file è true, sotto MAX_QUEUED_FILES.
+        // Così una richiesta che invia molti messaggi, come StreamDocumentRequest, accoda il successivo solo quando
+        // il client ha letto i precedenti, e la memoria e i descrittori occupati da una connessione restano limitati.
+        // Se il client non legge nulla per SEND_TIMEOUT millisecondi la connessione viene chiusa, così un client
+        // fermo non tiene occupato un worker
+        private void awaitCapacity(boolean file) throws IOException {
+            boolean stalled = false;
+            synchronized (writeQueue) {
+                long seen = writableEvents;
+                long deadline = System.currentTimeMillis() + SEND_TIMEOUT;
+                while (!closed && (queuedBytes > MAX_QUEUED_BYTES || file && queuedFiles >= MAX_QUEUED_FILES)) {
+                    long now = System.currentTimeMillis();
+                    if (writableEvents != seen) {
+                        seen = writableEvents;
+                        deadline = now + SEND_TIMEOUT;
+                    } else if (now >= deadline) {
+                        stalled = true;
+                        break;
+                    }
+                    try {
+                        writeQueue.wait(deadline - now);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (closed)
+                    throw new ClosedChannelException();
+            }
+            if (stalled) {
+                close();
+                throw new IOException("Client did not read for " + SEND_TIMEOUT + " ms");
+            }
+        }
+
+        // Non attende che la coda si svuoti: chi notifica non deve dipendere dalla velocità di un altro client
+        @Override
+        public boolean push(Message msg) {
+            if (closed)
+                return false;
+            try {
+                enqueue(new BufferOutgoing(encodeFrame(msg)));
+                return true;
+            } catch (IOException e) {
+                System.err.println("Could not push " + msg + " to " + remoteAddress + ": " + e.getMessage());
+                return false;
+            }
+        }
+
+        private ByteBuffer encodeFrame(Message msg) throws IOException {
+            byte[] frame = codec.encode(msg);
+            ByteBuffer buffer = ByteBuffer.allocate(4 + frame.length);
+            buffer.putInt(frame.length).put(frame).flip();
+            return buffer;
+        }
+
+        // Accoda gli elementi uno dopo l'altro, senza che altri thread possano inserirsi tra di essi. Se la
+        // connessione è stata chiusa nel frattempo li rilascia, perché nessuno li toglierà più dalla coda
+        private void enqueue(Outgoing... outgoings) throws ClosedChannelException {
+            synchronized (writeQueue) {
+                if (closed) {
+                    for (Outgoing outgoing : outgoings)
+                        outgoing.release();
+                    throw new ClosedChannelException();
+                }
+                for (Outgoing outgoing : outgoings) {
+                    writeQueue.add(outgoing);
+                    queuedBytes += outgoing.size();
+                    if (outgoing instanceof FileOutgoing)
+                        queuedFiles++;
+                }
+            }
+            loop.execute(() -> {
+                synchronized (writeQueue) {
+                    if (key.isValid())
+                        key.interestOps(interestOps());
+                }
+            });
+        }
+
+        @Override
+        public SocketAddress getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public void onClose(Consumer<Connection> listener) {
+            synchronized (writeQueue) {
+                if (!closed) {
+                    closeListeners.add(listener);
+                    return;
+                }
+            }
+            listener.accept(this);
+        }
+
+        void close() {
+            List<Consumer<Connection>> listeners;
+            synchronized (writeQueue) {
+                if (closed)
+                    return;
+                closed = true;
+                for (Outgoing outgoing : writeQueue)
+                    outgoing.release();
+                writeQueue.clear();
+                // i worker in attesa in awaitCapacity lanciano ClosedChannelException
+                writeQueue.notifyAll();
+                listeners = new ArrayList<>(closeListeners);
+                closeListeners.clear();
+            }
+            for (Consumer<Connection> listener : listeners)
+                listener.accept(this);
+            admission.connectionClosed();
+            System.out.println("Client disconnected " + remoteAddress);
+            try {
+                if (key != null)
+                    key.cancel();
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package server;
+
+import exceptions.TooManyRequestsException;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Esegue il calcolo degli hash delle password (PBKDF2) su un pool dedicato, grande quanto il numero di processori,
+ * con una coda limitata. Un picco di login non occupa i thread che servono le altre richieste: quando la coda è piena
+ * le nuove autenticazioni vengono rifiutate subito.
+ * Configurabile con le proprietà turing.hashThreads e turing.hashQueue.
+ */
+public class PasswordHasher {
+    // Una derivazione di chiave che può fallire solo per problemi dell'implementazione della JVM
+    public interface Derivation<T> {
+        T derive() throws NoSuchAlgorithmException, InvalidKeySpecException;
+    }
+
+    private static final PasswordHasher singleton = new PasswordHasher();
+
+    public final int threads = Integer.getInteger("turing.hashThreads", Runtime.getRuntime().availableProcessors());
+    public final int queueLimit = Integer.getInteger("turing.hashQueue", 64);
+    private final ThreadPoolExecutor executor;
+
+    private final LongAdder hashes = new LongAdder();
+    private final LongAdder hashNanos = new LongAdder();
+    private final AtomicLong maxHashNanos = new AtomicLong();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private PasswordHasher() {
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueLimit), runnable -> {
+                    Thread thread = new Thread(runnable, "password-hasher");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    public static PasswordHasher getInstance() {
+        return singleton;
+    }
+
+    // Esegue derivation sul pool e ne attende il risultato. Va chiamato senza tenere lock: l'attesa può durare
+    // quanto gli hash già in coda
+    public <T> T compute(Derivation<T> derivation) throws TooManyRequestsException, NoSuchAlgorithmException, InvalidKeySpecException {
+        long submitted = System.nanoTime();
+        Future<T> future;
+        try {
+            future = executor.submit(() -> {
+                long start = System.nanoTime();
+                waitNanos.add(start - submitted);
+                try {
+                    return derivation.derive();
+                } finally {
+                    record(System.nanoTime() - start);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw new TooManyRequestsException("Too many authentications in progress, try again later");
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new TooManyRequestsException("Interrupted while waiting for authentication");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NoSuchAlgorithmException)
+                throw (NoSuchAlgorithmException) cause;
+            if (cause instanceof InvalidKeySpecException)
+                throw (InvalidKeySpecException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private void record(long nanos) {
+        hashes.increment();
+        hashNanos.add(nanos);
+        maxHashNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public long getHashCount() {
+        return hashes.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public String toString() {
+        long count = Math.max(1, hashes.sum());
+        return String.format("Hashing: %d/%d queued, %d hashes, avg %.1f ms (max %.1f ms), avg wait %.1f ms, %d rejected.",
+                getQueueDepth(), queueLimit, hashes.sum(), hashNanos.sum() / 1e6 / count, maxHashNanos.get() / 1e6,
+                waitNanos.sum() / 1e6 / count, rejected.sum());
+    }
+}
@@ -1,6 +1,44 @@
 package server;
 
+import protocol.DocumentUri;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+
 public class PermanentStorage {
     public final static String BASE_FOLDER = "Turing";
+    // cartella dei segmenti di SegmentStorage
+    public final static String SEGMENTS_FOLDER = "Turing-segments";
+
+    // La memoria viene aperta al primo utilizzo: i client usano solo BASE_FOLDER
+    private static class Holder {
+        static final Storage storage = open(System.getProperty("turing.storage", "directory"));
+    }
+
+    public static Storage get() {
+        return Holder.storage;
+    }
+
+    private static Storage open(String kind) {
+        try {
+            switch (kind) {
+                case "directory":
+                    return new DirectoryStorage(Paths.get(BASE_FOLDER));
+                case "segments":
+                    return new SegmentStorage(Paths.get(SEGMENTS_FOLDER));
+                default:
+                    throw new IllegalArgumentException("Unknown storage " + kind + ", use directory or segments");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
+    // Chiave di un documento (la sua cartella) o di una sezione
+    public static String key(DocumentUri uri) {
+        if (uri.section == null)
+            return uri.owner + "/" + uri.docName;
+        return uri.owner + "/" + uri.docName + "/" + uri.section + ".txt";
+    }
 }
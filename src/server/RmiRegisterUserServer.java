@@ -4,6 +4,7 @@ import protocol.RmiRegisterUser;
 import exceptions.DuplicateUsernameException;
 import exceptions.InvalidPasswordException;
 import exceptions.InvalidUsernameException;
+import exceptions.TooManyRequestsException;
 
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
@@ -20,7 +21,7 @@ public class RmiRegisterUserServer extends UnicastRemoteObject implements RmiReg
     }
 
     @Override
-    public void registerUser(String username, String password) throws InvalidUsernameException, InvalidPasswordException, DuplicateUsernameException, InvalidKeySpecException, NoSuchAlgorithmException {
+    public void registerUser(String username, String password) throws InvalidUsernameException, InvalidPasswordException, DuplicateUsernameException, InvalidKeySpecException, NoSuchAlgorithmException, TooManyRequestsException {
         this.state.registerUser(username, password);
     }
 
@@ -0,0 +1,208 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Limita la memoria occupata dal testo delle sezioni a turing.sectionCacheBytes byte (default 64 MiB), con una LRU
+ * segmentata: una sezione caricata entra nel segmento di prova, e passa in quello protetto (80% del budget) solo se
+ * viene letta di nuovo. Le letture si limitano a segnare la sezione, senza lock; l'ordine viene aggiornato quando si
+ * cercano sezioni da scartare. Le sezioni lette una volta sola, come quelle di una scansione, escono per prime.
+ * Quando si supera il budget il testo delle sezioni meno usate viene scartato e verrà riletto da Storage al prossimo
+ * accesso. Non vengono mai scartate le sezioni bloccate né quelle il cui testo è solo nel WriteAheadLog.
+ */
+public class SectionCache {
+    private static final SectionCache singleton = new SectionCache();
+
+    public final long budget = Long.getLong("turing.sectionCacheBytes", 64L * 1024 * 1024);
+    private final long protectedBudget = budget * 8 / 10;
+
+    // protegge i due segmenti e i byte che occupano. Le letture non lo prendono (vedi hit)
+    private final ReentrantLock lock = new ReentrantLock();
+    // sezione -> byte occupati, dalla meno recente alla più recente
+    private final LinkedHashMap<DocumentSection, Long> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<DocumentSection, Long> protectedSegment = new LinkedHashMap<>();
+    private long probationBytes, protectedBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private SectionCache() {
+
+    }
+
+    public static SectionCache getInstance() {
+        return singleton;
+    }
+
+    // Memoria stimata occupata dal testo UTF-8 di una sezione: i byte più l'intestazione dell'array
+    public static long weight(byte[] text) {
+        return text.length + 16L;
+    }
+
+    // Il testo della sezione è stato letto senza accedere al disco. Non prende il lock: l'accesso viene solo segnato
+    // sulla sezione e la sua posizione viene aggiornata la prossima volta che si cercano sezioni da scartare
+    public void hit(DocumentSection section) {
+        hits.increment();
+        if (!section.referenced)
+            section.referenced = true;
+    }
+
+    // Il testo della sezione è stato caricato da Storage
+    public void miss(DocumentSection section, long weight) {
+        misses.increment();
+        put(section, weight);
+    }
+
+    // Il testo della sezione è stato modificato o caricato: la sezione entra nel segmento di prova
+    public void put(DocumentSection section, long weight) {
+        lock.lock();
+        try {
+            remove(section);
+            section.referenced = false;
+            probation.put(section, weight);
+            probationBytes += weight;
+        } finally {
+            lock.unlock();
+        }
+        evictIfNeeded();
+    }
+
+    // Va chiamato tenendo lock
+    private void remove(DocumentSection section) {
+        Long old = probation.remove(section);
+        if (old != null)
+            probationBytes -= old;
+        old = protectedSegment.remove(section);
+        if (old != null)
+            protectedBytes -= old;
+    }
+
+    // Sposta le sezioni meno recenti del segmento protetto in quello di prova. Va chiamato tenendo lock
+    private void demoteProtected() {
+        Iterator<Map.Entry<DocumentSection, Long>> it = protectedSegment.entrySet().iterator();
+        while (protectedBytes > protectedBudget && it.hasNext()) {
+            Map.Entry<DocumentSection, Long> entry = it.next();
+            it.remove();
+            protectedBytes -= entry.getValue();
+            probation.put(entry.getKey(), entry.getValue());
+            probationBytes += entry.getValue();
+        }
+    }
+
+    // Scarta il testo delle sezioni meno recenti finché si supera il budget, prima dal segmento di prova e poi da
+    // quello protetto. Le sezioni lette dall'ultimo passaggio ricevono una seconda possibilità: quelle in prova passano
+    // nel segmento protetto, quelle protette tornano in coda. Per questo servono al più due giri, perché nel primo
+    // ogni sezione perde il riferimento. Le sezioni vengono scelte tenendo il lock della cache e scartate dopo averlo
+    // rilasciato, perché DocumentSection.evict prende il lock della sezione: una sezione bloccata o modificata nel
+    // frattempo non viene scartata e torna nel segmento di prova
+    private void evictIfNeeded() {
+        if (!overBudget())
+            return;
+        List<Map.Entry<DocumentSection, Long>> victims = new ArrayList<>();
+        lock.lock();
+        try {
+            for (int round = 0; round < 2 && overBudget(); round++) {
+                scanProbation(victims);
+                demoteProtected();
+                scanProtected(victims);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Map.Entry<DocumentSection, Long> victim : victims) {
+            if (victim.getKey().evict())
+                evictions.increment();
+            else
+                readmit(victim.getKey(), victim.getValue());
+        }
+    }
+
+    // Rimette nel segmento di prova una sezione che non è stata scartata, se una put non l'ha già fatto e se il suo
+    // testo è ancora in memoria. Altrimenti il testo resterebbe in memoria senza essere contato nel budget
+    private void readmit(DocumentSection section, long weight) {
+        lock.lock();
+        try {
+            if (!section.isLoaded() || probation.containsKey(section) || protectedSegment.containsKey(section))
+                return;
+            probation.put(section, weight);
+            probationBytes += weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean overBudget() {
+        return probationBytes + protectedBytes > budget;
+    }
+
+    // Va chiamato tenendo lock
+    private void scanProbation(List<Map.Entry<DocumentSection, Long>> victims) {
+        List<Map.Entry<DocumentSection, Long>> promoted = new ArrayList<>();
+        Iterator<Map.Entry<DocumentSection, Long>> it = probation.entrySet().iterator();
+        while (overBudget() && it.hasNext()) {
+            Map.Entry<DocumentSection, Long> entry = it.next();
+            DocumentSection section = entry.getKey();
+            if (section.referenced) {
+                // letta di nuovo dopo essere entrata in cache. I byte passano subito al segmento protetto, la sezione
+                // dopo la scansione
+                section.referenced = false;
+                it.remove();
+                probationBytes -= entry.getValue();
+                protectedBytes += entry.getValue();
+                promoted.add(entry);
+            } else if (section.isEvictable()) {
+                // le sezioni bloccate o non ancora materializzate restano in memoria
+                it.remove();
+                probationBytes -= entry.getValue();
+                victims.add(entry);
+            }
+        }
+        for (Map.Entry<DocumentSection, Long> entry : promoted)
+            protectedSegment.put(entry.getKey(), entry.getValue());
+    }
+
+    // Va chiamato tenendo lock
+    private void scanProtected(List<Map.Entry<DocumentSection, Long>> victims) {
+        List<Map.Entry<DocumentSection, Long>> requeued = new ArrayList<>();
+        Iterator<Map.Entry<DocumentSection, Long>> it = protectedSegment.entrySet().iterator();
+        while (overBudget() && it.hasNext()) {
+            Map.Entry<DocumentSection, Long> entry = it.next();
+            DocumentSection section = entry.getKey();
+            if (section.referenced) {
+                // i byte non cambiano: la sezione viene solo spostata in coda
+                section.referenced = false;
+                it.remove();
+                requeued.add(entry);
+            } else if (section.isEvictable()) {
+                it.remove();
+                protectedBytes -= entry.getValue();
+                victims.add(entry);
+            }
+        }
+        for (Map.Entry<DocumentSection, Long> entry : requeued)
+            protectedSegment.put(entry.getKey(), entry.getValue());
+    }
+
+    public long getAccessCount() {
+        return hits.sum() + misses.sum();
+    }
+
+    public String toString() {
+        lock.lock();
+        try {
+            long accesses = Math.max(1, hits.sum() + misses.sum());
+            return String.format("Section cache: %d/%d KiB in %d sections (%d protected), %d hits, %d misses (%.1f%% hit rate), %d evictions.",
+                    (probationBytes + protectedBytes) / 1024, budget / 1024, probation.size() + protectedSegment.size(),
+                    protectedSegment.size(), hits.sum(), misses.sum(), hits.sum() * 100.0 / accesses, evictions.sum());
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/*
+ * Storage log-structured: ogni scrittura aggiunge un record (chiave e nuovo valore) in coda al segmento attivo,
+ * e un indice in memoria associa a ogni chiave la posizione del suo valore più recente. Al posto di centinaia di
+ * migliaia di file piccoli ci sono pochi file di segmento da turing.segmentSize byte (default 64 MiB).
+ * Gli fsync di scrittori concorrenti vengono condivisi: chi trova il segmento già sincronizzato oltre il proprio
+ * record non ne esegue un altro.
+ * All'avvio l'indice viene ricostruito leggendo i segmenti in ordine; un record incompleto in coda all'ultimo
+ * segmento viene scartato. Il thread segment-compactor riscrive in coda i valori ancora validi dei segmenti chiusi
+ * che contengono soprattutto valori sostituiti, e poi li cancella.
+ * Un record è formato da lunghezza e CRC32 del contenuto, seguiti dalla chiave (writeUTF) e dal valore.
+ */
+public class SegmentStorage implements Storage {
+    private static final int HEADER = 8;
+
+    // File di segmento. size e liveBytes contano i byte dei record, compresa l'intestazione
+    private static class Segment {
+        final long id;
+        final Path path;
+        final FileChannel channel;
+        volatile long size;
+        final AtomicLong liveBytes = new AtomicLong();
+
+        Segment(long id, Path path, FileChannel channel, long size) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+
+    // Posizione del valore di una chiave
+    private static class Location {
+        final Segment segment;
+        final long offset;
+        final int length;
+        final int recordLength;
+
+        Location(Segment segment, long offset, int length, int recordLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.recordLength = recordLength;
+        }
+    }
+
+    private final Path folder;
+    public final long segmentSize = Long.getLong("turing.segmentSize", 64L * 1024 * 1024);
+    // un segmento chiuso viene compattato quando la frazione di byte ancora validi scende sotto questa soglia
+    public final double compactionThreshold = Double.parseDouble(System.getProperty("turing.compactionThreshold", "0.5"));
+
+    private final ConcurrentSkipListMap<String, Location> index = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    // ordina le scritture in coda al segmento attivo
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private volatile Segment active;
+    // byte scritti in tutti i segmenti dall'avvio e byte di cui è stato fatto l'fsync
+    private long written;
+    private final AtomicLong synced = new AtomicLong();
+    // un solo fsync alla volta: chi attende trova spesso il proprio record già sincronizzato
+    private final ReentrantLock syncLock = new ReentrantLock();
+
+    private final LongAdder fsyncs = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+    private final LongAdder reclaimedBytes = new LongAdder();
+
+    public SegmentStorage(Path folder) throws IOException {
+        this.folder = folder;
+        Files.createDirectories(folder);
+        recover();
+        long interval = Long.getLong("turing.compactionInterval", 60);
+        ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "segment-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compact, interval, interval, TimeUnit.SECONDS);
+    }
+
+    // Ricostruisce l'indice dai segmenti presenti, dal più vecchio al più recente
+    private void recover() throws IOException {
+        List<Path> paths;
+        try (Stream<Path> list = Files.list(folder)) {
+            paths = list.filter(p -> p.getFileName().toString().endsWith(".seg")).sorted().collect(Collectors.toList());
+        }
+        for (Path path : paths) {
+            long id = Long.parseLong(path.getFileName().toString().replace(".seg", ""));
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(id, path, channel, 0);
+            segments.put(id, segment);
+            long valid = scan(segment);
+            if (valid < channel.size()) {
+                System.err.println("Segment " + path + ": discarding " + (channel.size() - valid) + " bytes after the last valid record");
+                channel.truncate(valid);
+                channel.force(false);
+            }
+            segment.size = valid;
+            active = segment;
+        }
+        if (active == null || active.size >= segmentSize)
+            active = newSegment(active == null ? 1 : active.id + 1);
+        System.out.println("Segment storage: " + index.size() + " keys in " + segments.size() + " segments");
+    }
+
+    // Aggiunge all'indice i record del segmento. Restituisce la lunghezza della parte valida
+    private long scan(Segment segment) throws IOException {
+        long position = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(segment.channel)));
+        while (true) {
+            int length, crc;
+            byte[] payload;
+            try {
+                length = in.readInt();
+                crc = in.readInt();
+                if (length < 2 || length > segment.channel.size() - position - HEADER)
+                    return position;
+                payload = new byte[length];
+                in.readFully(payload);
+            } catch (EOFException e) {
+                return position;
+            }
+            CRC32 check = new CRC32();
+            check.update(payload);
+            if ((int) check.getValue() != crc)
+                return position;
+            DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+            String key = record.readUTF();
+            int valueLength = record.available();
+            int recordLength = HEADER + length;
+            Location location = new Location(segment, position + recordLength - valueLength, valueLength, recordLength);
+            indexPut(key, location);
+            position += recordLength;
+        }
+    }
+
+    private Segment newSegment(long id) throws IOException {
+        Path path = folder.resolve(String.format("%016d.seg", id));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(id, path, channel, 0);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    // Aggiorna l'indice e i byte validi dei segmenti
+    private void indexPut(String key, Location location) {
+        location.segment.liveBytes.addAndGet(location.recordLength);
+        Location old = index.put(key, location);
+        if (old != null)
+            old.segment.liveBytes.addAndGet(-old.recordLength);
+    }
+
+    @Override
+    public byte[] read(String key) throws IOException {
+        while (true) {
+            Location location = index.get(key);
+            if (location == null)
+                throw new NoSuchFileException(key);
+            try {
+                return readValue(location);
+            } catch (ClosedChannelException e) {
+                // il segmento è stato compattato: l'indice punta già alla nuova posizione
+                if (index.get(key) == location)
+                    throw e;
+            }
+        }
+    }
+
+    private static byte[] readValue(Location location) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(location.length);
+        long position = location.offset;
+        while (buffer.hasRemaining()) {
+            int read = location.segment.channel.read(buffer, position);
+            if (read < 0)
+                throw new EOFException("Truncated segment " + location.segment.path);
+            position += read;
+        }
+        return buffer.array();
+    }
+
+    @Override
+    public void write(String key, byte[] value) throws IOException {
+        long end;
+        appendLock.lock();
+        try {
+            end = append(key, value);
+        } finally {
+            appendLock.unlock();
+        }
+        sync(end);
+    }
+
+    // Le scritture sono già raggruppate dagli fsync condivisi: la scrittura avviene subito
+    @Override
+    public CompletableFuture<Void> writeAsync(String key, byte[] value) {
+        try {
+            write(key, value);
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // Scrive il record in coda al segmento attivo e aggiorna l'indice. Va chiamato tenendo appendLock.
+    // Restituisce la posizione, contata su tutti i segmenti, fino a cui va fatto l'fsync
+    private long append(String key, byte[] value) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(key.length() + value.length + 2);
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeUTF(key);
+        out.write(value);
+        out.flush();
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteBuffer record = ByteBuffer.allocate(HEADER + bytes.length);
+        record.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes).flip();
+
+        if (active.size > 0 && active.size + record.remaining() > segmentSize) {
+            // il segmento chiuso viene sincronizzato subito: gli fsync successivi riguardano solo il nuovo
+            active.channel.force(false);
+            fsyncs.increment();
+            synced.accumulateAndGet(written, Math::max);
+            active = newSegment(active.id + 1);
+        }
+        long start = active.size;
+        long position = start;
+        while (record.hasRemaining())
+            position += active.channel.write(record, position);
+        active.size = position;
+        written += position - start;
+        int recordLength = (int) (position - start);
+        indexPut(key, new Location(active, position - value.length, value.length, recordLength));
+        return written;
+    }
+
+    // Ritorna quando i byte fino a end sono persistenti
+    private void sync(long end) throws IOException {
+        if (synced.get() >= end)
+            return;
+        syncLock.lock();
+        try {
+            if (synced.get() >= end)
+                return;
+            long target;
+            Segment segment;
+            appendLock.lock();
+            try {
+                target = written;
+                segment = active;
+            } finally {
+                appendLock.unlock();
+            }
+            segment.channel.force(false);
+            fsyncs.increment();
+            synced.accumulateAndGet(target, Math::max);
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    @Override
+    public long size(String key) throws IOException {
+        Location location = index.get(key);
+        if (location == null)
+            throw new NoSuchFileException(key);
+        return location.length;
+    }
+
+    @Override
+    public List<String> listFolders(String folder) {
+        String prefix = folder.isEmpty() ? "" : folder + "/";
+        List<String> folders = new ArrayList<>();
+        String key = index.ceilingKey(prefix);
+        while (key != null && key.startsWith(prefix)) {
+            int slash = key.indexOf('/', prefix.length());
+            if (slash < 0) {
+                key = index.higherKey(key);
+                continue;
+            }
+            String child = key.substring(prefix.length(), slash);
+            folders.add(child);
+            // salta tutte le chiavi della cartella appena trovata
+            key = index.higherKey(prefix + child + "/\uffff");
+        }
+        return folders;
+    }
+
+    @Override
+    public List<String> listFiles(String folder) {
+        String prefix = folder.isEmpty() ? "" : folder + "/";
+        List<String> files = new ArrayList<>();
+        String key = index.ceilingKey(prefix);
+        while (key != null && key.startsWith(prefix)) {
+            int slash = key.indexOf('/', prefix.length());
+            if (slash < 0) {
+                files.add(key.substring(prefix.length()));
+                key = index.higherKey(key);
+            } else {
+                key = index.higherKey(key.substring(0, slash) + "/\uffff");
+            }
+        }
+        return files;
+    }
+
+    // I valori sono all'interno dei segmenti: non c'è un file da inviare direttamente
+    @Override
+    public Path localFile(String key) {
+        return null;
+    }
+
+    // I record non vengono mai riscritti: il valore resta valido finché il segmento esiste
+    @Override
+    public Region region(String key) throws IOException {
+        Location location = index.get(key);
+        if (location == null)
+            throw new NoSuchFileException(key);
+        return new Region(location.segment.path, location.offset, location.length, false);
+    }
+
+    // Compatta i segmenti chiusi con pochi byte validi
+    private void compact() {
+        for (Segment segment : segments.values()) {
+            if (segment == active || segment.size == 0)
+                continue;
+            if (segment.liveBytes.get() >= segment.size * compactionThreshold)
+                continue;
+            try {
+                compact(segment);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+    }
+
+    // Riscrive in coda i valori ancora validi del segmento, li rende persistenti e cancella il segmento
+    private void compact(Segment segment) throws IOException {
+        long moved = 0;
+        long end = 0;
+        for (Map.Entry<String, Location> entry : index.entrySet()) {
+            Location location = entry.getValue();
+            if (location.segment != segment)
+                continue;
+            byte[] value = readValue(location);
+            appendLock.lock();
+            try {
+                // una scrittura più recente ha già sostituito il valore
+                if (index.get(entry.getKey()) != location)
+                    continue;
+                end = append(entry.getKey(), value);
+                moved += location.recordLength;
+            } finally {
+                appendLock.unlock();
+            }
+        }
+        if (end > 0)
+            sync(end);
+        segments.remove(segment.id);
+        segment.channel.close();
+        Files.deleteIfExists(segment.path);
+        compactions.increment();
+        reclaimedBytes.add(segment.size - moved);
+        System.out.println("Compacted segment " + segment.id + ": moved " + moved + " bytes, reclaimed " + (segment.size - moved));
+    }
+
+    // Scrive senza attendere l'fsync, che va poi fatto con flush. Usato dallo strumento di migrazione
+    void put(String key, byte[] value) throws IOException {
+        appendLock.lock();
+        try {
+            append(key, value);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    // Rende persistenti tutte le scritture
+    public void flush() throws IOException {
+        long end;
+        appendLock.lock();
+        try {
+            end = written;
+        } finally {
+            appendLock.unlock();
+        }
+        sync(end);
+    }
+
+    public String toString() {
+        long total = 0, live = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.size;
+            live += segment.liveBytes.get();
+        }
+        return String.format("Segment storage: %d keys, %d segments, %d/%d bytes live, %d fsyncs, %d compactions (%d bytes reclaimed).",
+                index.size(), segments.size(), live, total, fsyncs.sum(), compactions.sum(), reclaimedBytes.sum());
+    }
+}
@@ -3,14 +3,18 @@ package server;
 import protocol.RmiRegisterUser;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.rmi.AlreadyBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 
 /*
@@ -23,6 +27,8 @@ public class Server {
     public static final int RMI_PORT = 3000;
     // Numero di threads nel pool.
     public static final int NTHREADS = 16;
+    // Numero di event loop utilizzati dal front end NIO
+    public static final int NSELECTORS = 2;
 
     private static State state = State.getInstance();
     private static ExecutorService es = Executors.newFixedThreadPool(NTHREADS);
@@ -47,16 +53,85 @@ public class Server {
         }
     }
 
-    // loop del server TCP
-    public static void serverLoop() {
-        try (ServerSocket server = new ServerSocket(PORT)) {
+    // Crea un executor che esegue ogni task su un nuovo virtual thread. I virtual thread sono disponibili da Java 21:
+    // sulle JVM precedenti si ripiega su un pool di thread di piattaforma senza limite di dimensione
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads are not available on this JVM, using a cached thread pool.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    // Stampa periodicamente i contatori del controllo di ammissione e del calcolo degli hash, se sono cambiati
+    // dall'ultima volta. L'intervallo in secondi si imposta con la proprietà turing.statsInterval
+    private static void startStatsReporter() {
+        long interval = Long.getLong("turing.statsInterval", 60);
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "stats-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long[] last = { 0, 0, 0, 0, 0, 0 };
+        reporter.scheduleAtFixedRate(() -> {
+            AdmissionControl admission = AdmissionControl.getInstance();
+            long shed = admission.getShedTotal();
+            if (shed != last[0]) {
+                last[0] = shed;
+                System.out.println(admission);
+            }
+            PasswordHasher hasher = PasswordHasher.getInstance();
+            long hashes = hasher.getHashCount() + hasher.getRejectedCount();
+            if (hashes != last[1]) {
+                last[1] = hashes;
+                System.out.println(hasher);
+            }
+            WriteAheadLog wal = WriteAheadLog.getInstance();
+            long records = wal.getRecordCount();
+            if (records != last[2]) {
+                last[2] = records;
+                System.out.println(wal);
+            }
+            AtomicFileWriter writer = AtomicFileWriter.getInstance();
+            long writes = writer.getWriteCount();
+            if (writes != last[3]) {
+                last[3] = writes;
+                System.out.println(writer);
+            }
+            MappedSectionPool mapped = MappedSectionPool.getInstance();
+            long reads = mapped.getReadCount();
+            if (reads != last[4]) {
+                last[4] = reads;
+                System.out.println(mapped);
+            }
+            SectionCache cache = SectionCache.getInstance();
+            long accesses = cache.getAccessCount();
+            if (accesses != last[5]) {
+                last[5] = accesses;
+                System.out.println(cache);
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    // loop del server TCP: ogni client viene gestito da un ClientHandler eseguito da handlers
+    public static void serverLoop(ExecutorService handlers) {
+        // i socket accettati da un ServerSocketChannel hanno un canale, usato per inviare file con transferTo
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(PORT));
             System.out.println("Server listening on port " + PORT);
 
             while (true) {
-                Socket client = server.accept();
+                Socket client = server.accept().socket();
+                if (!AdmissionControl.getInstance().tryOpenConnection()) {
+                    System.err.println("Too many connections, refusing " + client.getRemoteSocketAddress());
+                    client.close();
+                    continue;
+                }
                 System.out.println("Client connected " + client.getRemoteSocketAddress().toString());
                 ClientHandler handler = new ClientHandler(client);
-                es.execute(handler);
+                handlers.execute(handler);
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -64,8 +139,30 @@ public class Server {
         }
     }
 
+    // loop del server TCP non bloccante: i thread del pool eseguono solo le richieste, non attendono i client
+    public static void nioServerLoop() {
+        try {
+            new NioServer(PORT, NSELECTORS, es).serve();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+    // Il primo argomento sceglie la modalità del server TCP: "threads" (predefinita), "virtual" oppure "nio"
     public static void main(String[] args) {
+        String mode = args.length > 0 ? args[0] : "threads";
         startRmiServer();
-        serverLoop();
+        startStatsReporter();
+        if (mode.equals("nio")) {
+            nioServerLoop();
+        } else if (mode.equals("threads")) {
+            serverLoop(es);
+        } else if (mode.equals("virtual")) {
+            serverLoop(newVirtualThreadExecutor());
+        } else {
+            System.err.println("usage: server [threads|virtual|nio]");
+            System.exit(-1);
+        }
     }
 }
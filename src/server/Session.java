@@ -0,0 +1,27 @@
+package server;
+
+/*
+ * Sessione aperta da un login. Ha un lease che ogni richiesta della sessione rinnova: se non viene rinnovato la
+ * sessione scade e viene chiusa da State.
+ */
+public class Session implements TimingWheel.Timeout {
+    public final long id;
+    public final User user;
+    // scadenza del lease, nella scala di System.nanoTime
+    private volatile long deadline;
+
+    public Session(long id, User user, long leaseNanos) {
+        this.id = id;
+        this.user = user;
+        renew(leaseNanos);
+    }
+
+    public void renew(long leaseNanos) {
+        this.deadline = System.nanoTime() + leaseNanos;
+    }
+
+    @Override
+    public long getDeadline() {
+        return deadline;
+    }
+}
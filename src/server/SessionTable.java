@@ -0,0 +1,179 @@
+package server;
+
+import java.util.concurrent.locks.StampedLock;
+
+/*
+ * Tabella sessionID -> Session con chiavi long primitive, senza boxing.
+ * È divisa in stripe indipendenti, ognuna una tabella hash ad indirizzamento aperto (linear probing) protetta da uno
+ * StampedLock: le letture sono ottimistiche e prendono il lock in lettura solo se una scrittura le ha invalidate.
+ * La chiave 0 indica uno slot vuoto e non può essere usata come sessionID.
+ */
+public class SessionTable {
+    private static final int STRIPES = 16;
+    private static final int INITIAL_CAPACITY = 64;
+
+    // chiavi e valori di una stripe, sostituiti insieme quando la stripe cresce
+    private static final class Slots {
+        final long[] keys;
+        final Session[] values;
+
+        Slots(int capacity) {
+            keys = new long[capacity];
+            values = new Session[capacity];
+        }
+    }
+
+    private static final class Stripe {
+        final StampedLock lock = new StampedLock();
+        Slots slots = new Slots(INITIAL_CAPACITY);
+        int size = 0;
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    public SessionTable() {
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+    }
+
+    private static long mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 32);
+    }
+
+    private Stripe stripeFor(long hash) {
+        return stripes[(int) (hash >>> 60) & (STRIPES - 1)];
+    }
+
+    // Posizione di key in slots, oppure -1. Il numero di tentativi è limitato, così una lettura ottimistica che vede
+    // la tabella a metà di una modifica termina comunque
+    private static int find(Slots slots, long key, long hash) {
+        long[] keys = slots.keys;
+        int mask = keys.length - 1;
+        int i = (int) hash & mask;
+        for (int probes = 0; probes < keys.length; probes++) {
+            long k = keys[i];
+            if (k == key)
+                return i;
+            if (k == 0)
+                return -1;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    public Session get(long key) {
+        if (key == 0)
+            return null;
+        long hash = mix(key);
+        Stripe stripe = stripeFor(hash);
+        long stamp = stripe.lock.tryOptimisticRead();
+        Slots slots = stripe.slots;
+        int i = find(slots, key, hash);
+        Session value = i < 0 ? null : slots.values[i];
+        if (stripe.lock.validate(stamp))
+            return value;
+        stamp = stripe.lock.readLock();
+        try {
+            slots = stripe.slots;
+            i = find(slots, key, hash);
+            return i < 0 ? null : slots.values[i];
+        } finally {
+            stripe.lock.unlockRead(stamp);
+        }
+    }
+
+    // Inserisce value se key non è presente. Restituisce la sessione già presente, oppure null
+    public Session putIfAbsent(long key, Session value) {
+        if (key == 0)
+            throw new IllegalArgumentException("Session ID 0 is reserved");
+        long hash = mix(key);
+        Stripe stripe = stripeFor(hash);
+        long stamp = stripe.lock.writeLock();
+        try {
+            int i = find(stripe.slots, key, hash);
+            if (i >= 0)
+                return stripe.slots.values[i];
+            if ((stripe.size + 1) * 2 > stripe.slots.keys.length)
+                stripe.slots = grow(stripe.slots);
+            insert(stripe.slots, key, hash, value);
+            stripe.size++;
+            return null;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    // Rimuove key e restituisce la sessione associata, oppure null
+    public Session remove(long key) {
+        return delete(key, null);
+    }
+
+    // Rimuove key solo se è associata a expected (qualunque sessione se expected è null)
+    private Session delete(long key, Session expected) {
+        if (key == 0)
+            return null;
+        long hash = mix(key);
+        Stripe stripe = stripeFor(hash);
+        long stamp = stripe.lock.writeLock();
+        try {
+            Slots slots = stripe.slots;
+            int i = find(slots, key, hash);
+            if (i < 0)
+                return null;
+            Session value = slots.values[i];
+            if (expected != null && value != expected)
+                return null;
+            deleteAt(slots, i);
+            stripe.size--;
+            return value;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    public boolean remove(long key, Session value) {
+        return value != null && delete(key, value) == value;
+    }
+
+    private static void insert(Slots slots, long key, long hash, Session value) {
+        int mask = slots.keys.length - 1;
+        int i = (int) hash & mask;
+        while (slots.keys[i] != 0)
+            i = (i + 1) & mask;
+        slots.values[i] = value;
+        slots.keys[i] = key;
+    }
+
+    private static Slots grow(Slots old) {
+        Slots slots = new Slots(old.keys.length * 2);
+        for (int i = 0; i < old.keys.length; i++)
+            if (old.keys[i] != 0)
+                insert(slots, old.keys[i], mix(old.keys[i]), old.values[i]);
+        return slots;
+    }
+
+    // Cancellazione con spostamento all'indietro: le chiavi successive nella stessa sequenza di probing vengono
+    // spostate nel buco, così non servono marcatori di cancellazione
+    private static void deleteAt(Slots slots, int hole) {
+        long[] keys = slots.keys;
+        int mask = keys.length - 1;
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mask;
+            long k = keys[i];
+            if (k == 0)
+                break;
+            int home = (int) mix(k) & mask;
+            // k può riempire il buco se la sua posizione naturale non sta tra il buco (escluso) e i (incluso)
+            boolean between = hole <= i ? (hole < home && home <= i) : (hole < home || home <= i);
+            if (!between) {
+                keys[hole] = k;
+                slots.values[hole] = slots.values[i];
+                hole = i;
+            }
+        }
+        keys[hole] = 0;
+        slots.values[hole] = null;
+    }
+}
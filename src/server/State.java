@@ -4,74 +4,114 @@ import exceptions.*;
 import protocol.DocumentUri;
 
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
 
 
 /*
  * Classe che mantiene lo stato globale del server in un singleton.
  */
 public class State {
-    private static State singleton;
+    private static volatile State singleton;
+    private static final ReentrantLock singletonLock = new ReentrantLock();
     private static SecureRandom csrng = new SecureRandom();
 
-    // mappa nome utente in User
-    private final Map<String, User> users = new HashMap<>();
-    // mappa sessionID (long) in User ('utente che ha aperto quella sessione effettuando il login)
-    private final Map<Long, User> activeLoginSessions = new HashMap<>();
+    // mappa nome utente in User. putIfAbsent garantisce l'unicità dei nomi senza un lock globale
+    private final Map<String, User> users = new ConcurrentHashMap<>();
+    // mappa sessionID nella Session aperta dal login
+    private final SessionTable activeLoginSessions = new SessionTable();
+
+    // Durata del lease di una sessione: se per questo tempo non arrivano richieste (anche solo HeartbeatRequest) la
+    // sessione scade. Si imposta in secondi con la proprietà turing.sessionLease
+    private final long leaseNanos = TimeUnit.SECONDS.toNanos(Long.getLong("turing.sessionLease", 30 * 60));
+    // controlla le scadenze delle sessioni una volta al secondo
+    private final TimingWheel<Session> sessionExpiry = new TimingWheel<>(1, TimeUnit.SECONDS, 512, this::expire, "session-expiry");
 
     private State() {
 
     }
 
-    // implementazione singleton
+    // implementazione singleton. Il caricamento avviene una sola volta anche se più thread lo richiedono insieme
     public static State getInstance() {
-        if (singleton == null)
-            singleton = load();
-        return singleton;
+        State state = singleton;
+        if (state != null)
+            return state;
+        singletonLock.lock();
+        try {
+            if (singleton == null)
+                load();
+            return singleton;
+        } finally {
+            singletonLock.unlock();
+        }
     }
 
-    // carica lo stato persistente salvato sul disco e inizializza il singleton
+    // carica lo stato persistente salvato sul disco e inizializza il singleton. Il singleton viene pubblicato solo a
+    // caricamento completato
+    // Utenti e documenti vengono caricati in parallelo da un ForkJoinPool di turing.loadThreads thread (di default uno
+    // per processore), in due fasi: i collaboratori si possono risolvere solo dopo che tutti gli utenti sono stati caricati
     private static State load() {
-        singleton = new State();
-        Path path = Paths.get(PermanentStorage.BASE_FOLDER);
+        State state = new State();
+        LongAdder files = new LongAdder();
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(Integer.getInteger("turing.loadThreads", Runtime.getRuntime().availableProcessors()));
         try {
-            if (Files.notExists(path))
-                Files.createDirectories(path);
-            Files.list(path).forEach(userFolder -> {
-                try {
-                    User user = User.load(userFolder);
-                    singleton.users.put(user.getName(), user);
-                } catch (IOException | InvalidUsernameException | InvalidPasswordException e) {
-                    e.printStackTrace();
-                }
-            });
+            List<String> usernames = PermanentStorage.get().listFolders("");
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(usernames.stream()
+                    .map(username -> ForkJoinTask.adapt(() -> {
+                        try {
+                            User user = User.load(username, files);
+                            state.users.put(user.getName(), user);
+                        } catch (IOException | InvalidUsernameException | InvalidPasswordException e) {
+                            e.printStackTrace();
+                        }
+                    }))
+                    .collect(Collectors.toList()))));
+            // Collaborators can be loaded only after all users have been loaded
+            List<Document> documents = state.users.values().stream()
+                    .flatMap(u -> u.getOwnedDocuments().stream())
+                    .collect(Collectors.toList());
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(documents.stream()
+                    .map(d -> ForkJoinTask.adapt(() -> {
+                        d.loadCollaborators(state);
+                        files.increment();
+                    }))
+                    .collect(Collectors.toList()))));
+            // le modifiche salvate nel log ma non ancora nei file delle sezioni
+            WriteAheadLog.getInstance().replay(state);
+            long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            System.out.printf("Loaded %d users and %d documents (%d files) in %d ms: %d files/s with %d threads%n",
+                    state.users.size(), documents.size(), files.sum(), millis, files.sum() * 1000 / millis, pool.getParallelism());
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            pool.shutdown();
         }
-        // Collaborators can be loaded only after all users have been loaded
-        for (User u : singleton.users.values())
-            for (Document d : u.getOwnedDocuments())
-                d.loadCollaborators();
-        return singleton;
+        singleton = state;
+        return state;
     }
 
     // restituisce un User a partire dal suo username, lanciando una InvalidUsernameException in caso l'utente non esista
-    public synchronized User getUser(String username) throws InvalidUsernameException {
-        if (!users.containsKey(username))
+    public User getUser(String username) throws InvalidUsernameException {
+        User user = username == null ? null : users.get(username);
+        if (user == null)
             throw new InvalidUsernameException();
-        return users.get(username);
+        return user;
     }
 
     // restituisce un User a partire dal suo username se esiste, altrimenti null
-    public synchronized User getUserOrNull(String username) {
-        return users.get(username);
+    public User getUserOrNull(String username) {
+        return username == null ? null : users.get(username);
     }
 
     // restituisce un Document a partire da un DocumentUri.
@@ -79,7 +119,7 @@ public class State {
     // - esistenza del proprietario del documento (viene lanciato InvalidUsernameException in caso contrario)
     // - esistenza del documento (viene lanciato DocumentNotFoundException in caso contrario)
     // - permessi dell'utente (viene lanciato NotAllowedException in caso contrario)
-    public synchronized Document getDocument(User requester, DocumentUri uri) throws InvalidUsernameException, DocumentNotFoundException, NotAllowedException {
+    public Document getDocument(User requester, DocumentUri uri) throws InvalidUsernameException, DocumentNotFoundException, NotAllowedException {
         User owner = getUser(uri.owner);
         return owner.getDocument(requester, uri.docName);
     }
@@ -90,17 +130,19 @@ public class State {
     // - esistenza del documento (viene lanciato DocumentNotFoundException in caso contrario)
     // - esistenza della sezione (viene lanciato DocumentSectionNotFoundException in caso contrario)
     // - permessi dell'utente (viene lanciato NotAllowedException in caso contrario)
-    public synchronized DocumentSection getDocumentSection(User requester, DocumentUri uri) throws DocumentSectionNotFoundException, InvalidUsernameException, DocumentNotFoundException, NotAllowedException {
+    public DocumentSection getDocumentSection(User requester, DocumentUri uri) throws DocumentSectionNotFoundException, InvalidUsernameException, DocumentNotFoundException, NotAllowedException {
         Document doc = getDocument(requester, uri);
         return doc.getSection(uri.section);
     }
 
-    // restituisce l'utente che ha avviato la sessione data come parametro
+    // restituisce l'utente che ha avviato la sessione data come parametro e ne rinnova il lease
     // In caso la sessione non sia valida viene lanciato un InvalidSessionException
-    public synchronized User getUserFromSession(Long sessionID) throws InvalidSessionException {
-        if (!activeLoginSessions.containsKey(sessionID))
+    public User getUserFromSession(long sessionID) throws InvalidSessionException {
+        Session session = activeLoginSessions.get(sessionID);
+        if (session == null)
             throw new InvalidSessionException("Session " + sessionID + " is not a valid session. Please login again.");
-        return activeLoginSessions.get(sessionID);
+        session.renew(leaseNanos);
+        return session.user;
     }
 
     // registra un utente al servizio
@@ -109,42 +151,83 @@ public class State {
     // InvalidUsernameException   -> username non valido (troppo corto)
     // InvalidKeySpecException    -> eccezione lanciata dalla implementazione della JVM in uso
     // NoSuchAlgorithmException   -> eccezione lanciata dalla implementazione della JVM in uso
-    public synchronized void registerUser(String username, String password) throws DuplicateUsernameException,
-            InvalidPasswordException, InvalidUsernameException, InvalidKeySpecException, NoSuchAlgorithmException {
+    // Il nome viene riservato con putIfAbsent prima di scrivere su disco, così una registrazione duplicata non
+    // sovrascrive i dati dell'utente esistente
+    public void registerUser(String username, String password) throws DuplicateUsernameException,
+            InvalidPasswordException, InvalidUsernameException, InvalidKeySpecException, NoSuchAlgorithmException,
+            TooManyRequestsException {
+        if (username != null && users.containsKey(username))
+            throw new DuplicateUsernameException();
         User new_user = User.registerUser(username, password);
-        if (users.containsKey(username)) {
+        if (users.putIfAbsent(username, new_user) != null) {
             System.err.println("User " + new_user.toString() + " already exists.");
             throw new DuplicateUsernameException();
         }
-        this.users.put(username, new_user);
+        new_user.saveCredentials();
         System.out.println("New " + new_user.toString() + " registered.");
     }
 
     // genera un ID sessione a caso. Probabilità di una collisione: #Sessioni / 2 ^ 64 (3 E38), cioè quasi impossibile
-    private static Long generateSessionID() {
-        return csrng.nextLong();
+    // 0 non è un ID valido per SessionTable
+    private static long generateSessionID() {
+        long sessionID;
+        do {
+            sessionID = csrng.nextLong();
+        } while (sessionID == 0);
+        return sessionID;
     }
 
     // esegue il login dell'utente, controllando nome utente e password e generando una nuova sessione
     // Fallisce in caso la password non sia valida lanciando un InvalidPasswordException
     // InvalidKeySpecException e NoSuchAlgorithmException vengono lanciate dal codice che controlla la password e
     // dipendono dalla corrente implementazione della JVM
-    public synchronized Long login(User user, String password) throws InvalidPasswordException, GenericServerErrorException {
+    // Il controllo della password (PBKDF2) avviene su PasswordHasher senza tenere alcun lock, TooManyRequestsException
+    // indica che la sua coda è piena
+    public Long login(User user, String password) throws InvalidPasswordException, GenericServerErrorException, TooManyRequestsException {
         user.login(password);
-        Long sessionID = generateSessionID();
-        synchronized (this.activeLoginSessions) {
-            this.activeLoginSessions.put(sessionID, user);
-        }
-        return sessionID;
+        Session session;
+        do {
+            session = new Session(generateSessionID(), user, leaseNanos);
+        } while (activeLoginSessions.putIfAbsent(session.id, session) != null);
+        AdmissionControl.getInstance().sessionOpened(session.id);
+        user.sessionOpened();
+        sessionExpiry.schedule(session);
+        return session.id;
     }
 
     // essegue il logout invalidando il sessionID.
-    public synchronized void logout(Long sessionID) throws InvalidRequestException {
-        synchronized (this.activeLoginSessions) {
-            User loggedIn = this.activeLoginSessions.get(sessionID);
-            if (loggedIn == null)
-                throw new InvalidRequestException();
-            activeLoginSessions.remove(sessionID);
+    // Se era l'ultima sessione dell'utente, la sezione che stava modificando viene sbloccata senza salvare modifiche
+    public void logout(long sessionID) throws InvalidRequestException {
+        Session session = activeLoginSessions.remove(sessionID);
+        if (session == null)
+            throw new InvalidRequestException();
+        AdmissionControl.getInstance().forgetSession(sessionID);
+        sessionClosed(session);
+    }
+
+    // Chiamato da sessionExpiry quando il lease di una sessione è scaduto
+    private void expire(Session session) {
+        if (!activeLoginSessions.remove(session.id, session))
+            return;
+        System.out.println("Session of " + session.user.getName() + " expired.");
+        AdmissionControl.getInstance().forgetSession(session.id);
+        sessionClosed(session);
+    }
+
+    // Se session era l'ultima sessione dell'utente, la sezione che stava modificando viene sbloccata senza salvare
+    // modifiche, altrimenti resterebbe bloccata per sempre
+    private void sessionClosed(Session session) {
+        if (session.user.sessionClosed() > 0)
+            return;
+        DocumentUri editing = session.user.editing;
+        if (editing == null)
+            return;
+        try {
+            Document doc = getDocument(session.user, editing);
+            doc.releaseSection(session.user, editing.section);
+            System.out.println("Released " + editing + " locked by " + session.user.getName() + ".");
+        } catch (ProtocolException e) {
+            System.err.println("Could not release " + editing + ": " + e);
         }
     }
 }
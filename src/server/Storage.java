@@ -0,0 +1,56 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/*
+ * Memoria permanente del server. I dati sono identificati da chiavi con la struttura di un percorso relativo,
+ * separato da "/": "utente/password.txt", "utente/documento/manifest.bin", "utente/documento/0.txt".
+ * Implementazioni: DirectoryStorage (un file per chiave) e SegmentStorage (file di segmento con indice in memoria).
+ * Si sceglie con la proprietà turing.storage (directory o segments), vedi PermanentStorage.
+ */
+public interface Storage {
+    // Porzione di un file che contiene il valore di una chiave, da leggere con una mappatura in memoria
+    class Region {
+        public final Path file;
+        public final long offset;
+        // -1 se il valore occupa l'intero file
+        public final int length;
+        // true se il file viene sostituito a ogni scrittura della chiave, false se il suo contenuto non cambia
+        public final boolean replaceable;
+
+        public Region(Path file, long offset, int length, boolean replaceable) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.replaceable = replaceable;
+        }
+    }
+
+    // Restituisce il contenuto associato alla chiave. Lancia NoSuchFileException se non esiste
+    byte[] read(String key) throws IOException;
+
+    // Sostituisce il contenuto associato alla chiave e ritorna quando la scrittura è persistente.
+    // Dopo un crash la chiave ha il contenuto precedente o quello nuovo, mai uno scritto a metà
+    void write(String key, byte[] value) throws IOException;
+
+    // Come write, ma senza attendere: più scritture accodate insieme possono condividere gli fsync
+    CompletableFuture<Void> writeAsync(String key, byte[] value);
+
+    // Dimensione in byte del contenuto. Lancia NoSuchFileException se non esiste
+    long size(String key) throws IOException;
+
+    // Nomi delle "cartelle" contenute in folder, cioè dei prefissi di altre chiavi. "" è la radice
+    List<String> listFolders(String folder) throws IOException;
+
+    // Nomi delle chiavi contenute direttamente in folder
+    List<String> listFiles(String folder) throws IOException;
+
+    // File che contiene solo il valore della chiave, da inviare direttamente sul socket. Null se non è disponibile
+    Path localFile(String key);
+
+    // Posizione del valore della chiave su disco. Lancia NoSuchFileException se la chiave non esiste
+    Region region(String key) throws IOException;
+}
@@ -0,0 +1,48 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/*
+ * Copia i dati salvati da DirectoryStorage (cartella Turing) in un SegmentStorage (cartella Turing-segments).
+ * Va eseguito a server spento. Il log delle modifiche deve essere vuoto: se non lo è basta avviare una volta il
+ * server con lo storage a cartelle, che lo riapplica ai file delle sezioni.
+ * Dopo la migrazione il server va avviato con -Dturing.storage=segments. La cartella Turing non viene modificata.
+ * Uso: java server.StorageMigration
+ */
+public class StorageMigration {
+    public static void main(String[] args) throws IOException {
+        Path base = Paths.get(PermanentStorage.BASE_FOLDER);
+        Path wal = base.resolve(WriteAheadLog.FILE_NAME);
+        if (Files.exists(wal) && Files.size(wal) > 0) {
+            System.err.println(wal + " is not empty: start the server once with the directory storage to replay it.");
+            System.exit(1);
+        }
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(base)) {
+            files = walk.filter(Files::isRegularFile)
+                    .filter(p -> p.getParent() != null && !p.getParent().equals(base))
+                    .filter(p -> !p.getFileName().toString().endsWith(AtomicFileWriter.TEMP_SUFFIX))
+                    .collect(Collectors.toList());
+        }
+        long start = System.nanoTime();
+        SegmentStorage storage = new SegmentStorage(Paths.get(PermanentStorage.SEGMENTS_FOLDER));
+        long bytes = 0;
+        for (Path file : files) {
+            byte[] value = Files.readAllBytes(file);
+            String key = base.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+            storage.put(key, value);
+            bytes += value.length;
+        }
+        storage.flush();
+        long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+        System.out.printf("Migrated %d files (%d bytes) from %s to %s in %d ms.%n", files.size(), bytes, base,
+                PermanentStorage.SEGMENTS_FOLDER, millis);
+        System.out.println(storage);
+    }
+}
@@ -0,0 +1,74 @@
+package server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/*
+ * Hashed timing wheel: un array circolare di slot, uno per tick. Un timeout viene inserito nello slot del tick in cui
+ * scade (O(1)) e ad ogni tick viene esaminato un solo slot.
+ * La scadenza di un timeout può essere spostata in avanti senza toccare la ruota: quando il suo slot viene esaminato,
+ * un timeout non ancora scaduto viene reinserito nello slot della nuova scadenza. Così rinnovare un lease costa una
+ * scrittura volatile. I timeout più lontani di un giro della ruota fanno più giri allo stesso modo.
+ */
+public class TimingWheel<T extends TimingWheel.Timeout> {
+    public interface Timeout {
+        // Istante di scadenza, nella scala di System.nanoTime
+        long getDeadline();
+    }
+
+    private final long tickNanos;
+    private final Queue<T>[] slots;
+    private final int mask;
+    private final Consumer<T> onExpire;
+    // ultimo tick esaminato
+    private volatile long tick = 0;
+
+    // slots viene arrotondato alla potenza di 2 successiva
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(long tick, TimeUnit unit, int slots, Consumer<T> onExpire, String name) {
+        int size = Integer.highestOneBit(Math.max(2, slots - 1)) << 1;
+        this.tickNanos = unit.toNanos(tick);
+        this.slots = new Queue[size];
+        for (int i = 0; i < size; i++)
+            this.slots[i] = new ConcurrentLinkedQueue<>();
+        this.mask = size - 1;
+        this.onExpire = onExpire;
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::advance, tick, tick, unit);
+    }
+
+    // Inserisce timeout nello slot della sua scadenza, al più un giro più avanti
+    public void schedule(T timeout) {
+        long ticks = (timeout.getDeadline() - System.nanoTime() + tickNanos - 1) / tickNanos;
+        ticks = Math.max(1, Math.min(ticks, mask));
+        slots[(int) ((tick + ticks) & mask)].add(timeout);
+    }
+
+    // Esamina lo slot del tick successivo: i timeout scaduti vengono notificati, gli altri reinseriti più avanti
+    private void advance() {
+        long current = tick + 1;
+        tick = current;
+        Queue<T> slot = slots[(int) (current & mask)];
+        long now = System.nanoTime();
+        T timeout;
+        while ((timeout = slot.poll()) != null) {
+            if (timeout.getDeadline() - now <= 0) {
+                try {
+                    onExpire.accept(timeout);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            } else {
+                schedule(timeout);
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package server;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Token bucket: si riempie di rate gettoni al secondo fino a un massimo di burst. Ogni operazione ne consuma alcuni
+ * e viene rifiutata se non ce ne sono abbastanza.
+ */
+class TokenBucket {
+    private final double rate;
+    private final double burst;
+    private double tokens;
+    private long lastRefill;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    TokenBucket(double rate, double burst) {
+        this.rate = rate;
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    // Consuma count gettoni se disponibili, altrimenti non consuma nulla e restituisce false. Un'operazione che costa
+    // più di burst consuma burst gettoni: altrimenti non verrebbe mai accettata
+    boolean tryAcquire(int count) {
+        lock.lock();
+        try {
+            double needed = Math.min(count, burst);
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+            if (tokens < needed)
+                return false;
+            tokens -= needed;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Restituisce i gettoni consumati con tryAcquire(count) da un'operazione che poi è stata rifiutata
+    void release(int count) {
+        lock.lock();
+        try {
+            tokens = Math.min(burst, tokens + Math.min(count, burst));
+        } finally {
+            lock.unlock();
+        }
+    }
+}
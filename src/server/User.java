@@ -1,19 +1,25 @@
 package server;
 
 import exceptions.*;
+import protocol.Connection;
 import protocol.DocumentUri;
 
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
+
 import java.io.IOException;
 import java.io.Serializable;
-import java.net.Socket;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.*;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.util.*;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -27,14 +33,26 @@ public class User implements Serializable {
     public final String name;
     // hash della password dell'utente
     public final String hashedPassword;
-    // identifiacatore della sezione bloccata dall'utente
-    public DocumentUri editing;
+    // identifiacatore della sezione bloccata dall'utente. Va modificato solo con startEditing e stopEditing
+    public volatile DocumentUri editing;
     // Mappa il nome del documento con il Document corrispondente
     private transient Map<String, Document> documents;
     // Insieme di documenti su cui l'utente sta collaborando. Va mantenuta la consistenza con Document.collaborators
     private transient Set<Document> collaboratingOn;
     // Coda di inviti pendenti non ancora notificati all'utente perché non è online
     private transient Queue<Invite> inviteInbox;
+    // Connessioni su cui l'utente è loggato: gli inviti vengono notificati subito su ognuna di esse
+    private transient Set<Connection> connections;
+    // registrato con Connection.onClose: toglie da connections le connessioni chiuse. È sempre lo stesso oggetto, così
+    // una connessione su cui l'utente rientra più volte non accumula listener
+    private final transient Consumer<Connection> detacher = this::detach;
+    // numero di sessioni aperte dall'utente
+    private final transient AtomicInteger liveSessions = new AtomicInteger();
+    // protegge documenti, collaborazioni, coda di inviti e connessioni
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private static final AtomicReferenceFieldUpdater<User, DocumentUri> EDITING =
+            AtomicReferenceFieldUpdater.newUpdater(User.class, DocumentUri.class, "editing");
 
     // Costruttore che pone dei controlli di validità della password e del nome utente
     public User(String name, String hashedPassword) throws InvalidUsernameException, InvalidPasswordException {
@@ -52,20 +70,23 @@ public class User implements Serializable {
         this.documents = new HashMap<>();
         this.collaboratingOn = new HashSet<>();
         this.inviteInbox = new ArrayDeque<>();
+        this.connections = new HashSet<>();
     }
 
-    // Registra un nuovo utente sul server creando la struttura di directory corrispondente
-    public static User registerUser(String name, String password) throws InvalidPasswordException, InvalidUsernameException, InvalidKeySpecException, NoSuchAlgorithmException {
+    // Crea un nuovo utente calcolando l'hash della password. Non scrive nulla su disco: vedi saveCredentials
+    public static User registerUser(String name, String password) throws InvalidPasswordException, InvalidUsernameException,
+            InvalidKeySpecException, NoSuchAlgorithmException, TooManyRequestsException {
         String hashedPassword = hashPassword(password);
-        User newUser = new User(name, hashedPassword);
+        return new User(name, hashedPassword);
+    }
+
+    // Salva l'hash della password in Storage, creando la cartella dell'utente
+    public void saveCredentials() {
         try {
-            Path path = Paths.get(PermanentStorage.BASE_FOLDER, name);
-            Files.createDirectories(path);
-            Files.writeString(path.resolve("password.txt"), hashedPassword, StandardCharsets.UTF_8, StandardOpenOption.CREATE);
+            PermanentStorage.get().write(name + "/password.txt", hashedPassword.getBytes(StandardCharsets.UTF_8));
         } catch (IOException e) {
             System.out.println("Could not create user data: " + e.getMessage());
         }
-        return newUser;
     }
 
     // Genera il sale, un numero casuale crittograficamente sicuro da utilizzare per creare l'hash della password
@@ -80,14 +101,13 @@ public class User implements Serializable {
     // - numero di iterazioni dell'algoritmo PBKDF2
     // - sale codificato in Base64
     // - hash della password e del sale calcolato dal PBKDF2 e codificato in Base64
-    private static String hashPassword(String password) throws NoSuchAlgorithmException, InvalidKeySpecException {
+    // Il PBKDF2 viene eseguito da PasswordHasher
+    private static String hashPassword(String password) throws NoSuchAlgorithmException, InvalidKeySpecException, TooManyRequestsException {
         int iterations = 1000;
         char[] chars = password.toCharArray();
         byte[] salt = generateSalt();
 
-        PBEKeySpec spec = new PBEKeySpec(chars, salt, iterations, 64 * 8);
-        SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-        byte[] hash = skf.generateSecret(spec).getEncoded();
+        byte[] hash = PasswordHasher.getInstance().compute(() -> pbkdf2(chars, salt, iterations, 64 * 8));
 
         String encodedSalt = new String(Base64.getEncoder().encode(salt));
         String encodedHash = new String(Base64.getEncoder().encode(hash));
@@ -95,15 +115,14 @@ public class User implements Serializable {
     }
 
     // Controllo corrispondenza password, mediante confronto dell'hash
-    private boolean checkPassword(String originalPassword) throws NoSuchAlgorithmException, InvalidKeySpecException {
+    private boolean checkPassword(String originalPassword) throws NoSuchAlgorithmException, InvalidKeySpecException, TooManyRequestsException {
         String[] splitted = this.hashedPassword.split(":");
         int iterations = Integer.parseInt(splitted[0]);
         byte[] storedSalt = Base64.getDecoder().decode(splitted[1].getBytes());
         byte[] storedHash = Base64.getDecoder().decode(splitted[2].getBytes());
 
-        PBEKeySpec spec = new PBEKeySpec(originalPassword.toCharArray(), storedSalt, iterations, storedHash.length * 8);
-        SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-        byte[] testHash = skf.generateSecret(spec).getEncoded();
+        byte[] testHash = PasswordHasher.getInstance().compute(() ->
+                pbkdf2(originalPassword.toCharArray(), storedSalt, iterations, storedHash.length * 8));
 
         // slowEquals, impiega sempre lo stesso tempo, sia quando i 2 hash sono uguali, sia quando sono diversi
         // evita timing attack
@@ -114,34 +133,62 @@ public class User implements Serializable {
         return diff == 0;
     }
 
-    // carica la password e tutti i documenti dell'utente da disco
-    public static User load(Path userFolder) throws IOException, InvalidPasswordException, InvalidUsernameException {
-        String username = userFolder.getFileName().toString();
+    private static byte[] pbkdf2(char[] password, byte[] salt, int iterations, int bits) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, bits);
+        SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+        return skf.generateSecret(spec).getEncoded();
+    }
+
+    // carica la password e tutti i documenti dell'utente da disco. Aggiunge a files il numero di file letti o elencati
+    // Va eseguito in un ForkJoinPool: i documenti vengono caricati in parallelo (vedi State.load)
+    public static User load(String username, LongAdder files) throws IOException, InvalidPasswordException, InvalidUsernameException {
         System.out.println("Loading user " + username);
-        String hashedPassword = Files.readString(userFolder.resolve("password.txt"));
+        String hashedPassword = new String(PermanentStorage.get().read(username + "/password.txt"), StandardCharsets.UTF_8);
+        files.increment();
         User user = new User(username, hashedPassword);
-        user.loadDocuments(userFolder);
+        user.loadDocuments(files);
         return user;
     }
 
-    // Carica i documenti dell'utente da disco
-    private void loadDocuments(Path userFolder) {
+    // Carica i documenti dell'utente da disco, un task per documento
+    private void loadDocuments(LongAdder files) {
+        List<String> docNames;
         try {
-            Files.list(userFolder).forEach(documentFolder -> {
-               try {
-                   String docName = documentFolder.getFileName().toString();
-                   int sections = Files.list(documentFolder).toArray().length;
-                   System.out.println("Loading document " + docName);
-                   Document doc = Document.load(new DocumentUri(this.name, docName), this, sections);
-                   this.documents.put(docName, doc);
-               } catch (NotDirectoryException ignored) {
-
-               } catch (IOException e) {
-                   e.printStackTrace();
-               }
-            });
+            docNames = PermanentStorage.get().listFolders(this.name);
         } catch (IOException e) {
             e.printStackTrace();
+            return;
+        }
+        ForkJoinTask.invokeAll(docNames.stream()
+                .map(docName -> ForkJoinTask.adapt(() -> loadDocument(docName, files)))
+                .collect(Collectors.toList()));
+    }
+
+    private void loadDocument(String docName, LongAdder files) {
+        String documentFolder = this.name + "/" + docName;
+        DocumentManifest manifest;
+        try {
+            manifest = DocumentManifest.read(documentFolder);
+            files.increment();
+        } catch (IOException e) {
+            // documento salvato senza manifest o manifest danneggiato: lo si ricostruisce dalla cartella
+            try {
+                manifest = DocumentManifest.scan(documentFolder);
+                files.add(manifest.getSectionsCount() + 1);
+                manifest.save();
+                System.out.println("Rebuilt manifest of " + this.name + "/" + docName);
+            } catch (IOException e2) {
+                e2.printStackTrace();
+                return;
+            }
+        }
+        System.out.println("Loading document " + docName);
+        Document doc = Document.load(new DocumentUri(this.name, docName), this, manifest);
+        lock.lock();
+        try {
+            this.documents.put(docName, doc);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -154,18 +201,28 @@ public class User implements Serializable {
     }
 
     // restituisce la lista dei documenti posseduti dall'utente
-    public synchronized List<Document> getOwnedDocuments() {
-        return new ArrayList<>(this.documents.values());
+    public List<Document> getOwnedDocuments() {
+        lock.lock();
+        try {
+            return new ArrayList<>(this.documents.values());
+        } finally {
+            lock.unlock();
+        }
     }
 
     // restituisce la lista di DocumentInfo relativi ai documenti posseduti dall'utente e quelli su cui sta collaborando
-    public synchronized List<DocumentInfo> listDocumentInfos() {
-        Stream<Document> allDocuments = Stream.concat(this.documents.values().stream(), this.collaboratingOn.stream());
-        return allDocuments.map(doc -> doc.getInfo()).collect(Collectors.toList());
+    public List<DocumentInfo> listDocumentInfos() {
+        lock.lock();
+        try {
+            Stream<Document> allDocuments = Stream.concat(this.documents.values().stream(), this.collaboratingOn.stream());
+            return allDocuments.map(doc -> doc.getInfo()).collect(Collectors.toList());
+        } finally {
+            lock.unlock();
+        }
     }
 
     // Controllo password al momento del login
-    public void login(String password) throws InvalidPasswordException, GenericServerErrorException {
+    public void login(String password) throws InvalidPasswordException, GenericServerErrorException, TooManyRequestsException {
         try {
             if (!this.checkPassword(password))
                 throw new InvalidPasswordException();
@@ -174,47 +231,112 @@ public class User implements Serializable {
         }
     }
 
-    // Svuota la coda di notifiche pendenti inviando ogni invito
-    public synchronized void processInbox(Socket client) {
-        while (!inviteInbox.isEmpty()) {
-            Invite invite = inviteInbox.remove();
-            try {
-                invite.send(client);
-            } catch (IOException | NullPointerException e) {
-                System.err.println("Failed to send " + invite.toString());
+    // Registra una connessione su cui l'utente è loggato e vi accoda gli inviti ricevuti mentre era offline.
+    // La connessione viene tolta quando si chiude. I messaggi vengono scritti in modo asincrono, quindi tenere il lock
+    // non blocca altri utenti
+    public void attach(Connection client) {
+        lock.lock();
+        try {
+            boolean added = connections.add(client);
+            if (added)
+                client.onClose(detacher);
+            if (!added && inviteInbox.isEmpty())
+                return;
+            while (!inviteInbox.isEmpty()) {
+                if (!inviteInbox.peek().push(client)) {
+                    connections.remove(client);
+                    return;
+                }
+                inviteInbox.remove();
             }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // La connessione non riceverà più notifiche per questo utente
+    public void detach(Connection client) {
+        lock.lock();
+        try {
+            connections.remove(client);
+        } finally {
+            lock.unlock();
         }
     }
 
-    // Accoda un invito e aggiunge il documento all'insieme dei documenti su cui si sta collaborando
+    // Aggiunge il documento all'insieme dei documenti su cui si sta collaborando e notifica l'invito su tutte le
+    // connessioni dell'utente. Se non ce ne sono di aperte l'invito resta in coda fino al prossimo login
     public void queueInvite(Invite invite) {
-        this.inviteInbox.add(invite);
-        this.collaboratingOn.add(invite.document);
+        lock.lock();
+        try {
+            this.collaboratingOn.add(invite.document);
+            boolean delivered = false;
+            Iterator<Connection> it = connections.iterator();
+            while (it.hasNext()) {
+                if (invite.push(it.next()))
+                    delivered = true;
+                else
+                    it.remove();
+            }
+            if (!delivered)
+                this.inviteInbox.add(invite);
+        } finally {
+            lock.unlock();
+        }
     }
 
     // Crea un documento controllando che non sia già presente
-    public synchronized Document createDocument(String docName, int sections) throws DuplicateDocumentException {
-        if (documents.containsKey(docName)) {
-            throw new DuplicateDocumentException();
+    public Document createDocument(String docName, int sections) throws DuplicateDocumentException {
+        lock.lock();
+        try {
+            if (documents.containsKey(docName)) {
+                throw new DuplicateDocumentException();
+            }
+            Document doc = Document.create(new DocumentUri(this.name, docName), this, sections);
+            this.documents.put(docName, doc);
+            return doc;
+        } finally {
+            lock.unlock();
         }
-        Document doc = Document.create(new DocumentUri(this.name, docName), this, sections);
-        this.documents.put(docName, doc);
-        return doc;
     }
 
     // Restituisce un Document a partire dal suo nome e dal richiedente. Il richiedente serve per verificare che abbia i
     // permessi necessari
-    public synchronized Document getDocument(User requester, String name) throws DocumentNotFoundException, NotAllowedException {
-        if (!documents.containsKey(name))
-            throw new DocumentNotFoundException();
-        Document doc = documents.get(name);
-        if (!doc.isAllowed(requester))
-            throw new NotAllowedException();
-        return doc;
+    public Document getDocument(User requester, String name) throws DocumentNotFoundException, NotAllowedException {
+        lock.lock();
+        try {
+            if (!documents.containsKey(name))
+                throw new DocumentNotFoundException();
+            Document doc = documents.get(name);
+            if (!doc.isAllowed(requester))
+                throw new NotAllowedException();
+            return doc;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void sessionOpened() {
+        liveSessions.incrementAndGet();
+    }
+
+    // Restituisce il numero di sessioni che restano aperte
+    public int sessionClosed() {
+        return liveSessions.decrementAndGet();
     }
 
     // restituisce true se l'utente sta modificando una sessione
-    public synchronized boolean isEditing() {
+    public boolean isEditing() {
         return this.editing != null;
     }
+
+    // Segna che l'utente sta modificando section. Restituisce false se sta già modificando un'altra sezione
+    public boolean startEditing(DocumentUri section) {
+        return EDITING.compareAndSet(this, null, section);
+    }
+
+    // L'utente ha terminato di modificare section
+    public void stopEditing(DocumentUri section) {
+        EDITING.compareAndSet(this, section, null);
+    }
 }
@@ -0,0 +1,346 @@
+package server;
+
+import exceptions.DocumentNotFoundException;
+import exceptions.NotAllowedException;
+import protocol.BinaryCodec;
+import protocol.DocumentUri;
+import protocol.Message;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/*
+ * Log di scrittura anticipata (write-ahead log) delle modifiche alle sezioni, in Turing/wal.log.
+ * Il testo modificato viene aggiunto in coda al log prima di essere reso visibile; le scritture concorrenti vengono
+ * raggruppate (group commit): il primo scrittore che trova il log libero scrive tutti i record in attesa e li rende
+ * persistenti con un solo fsync, gli altri attendono la fine del suo batch.
+ * I file delle sezioni vengono riscritti in background dal thread wal-materializer. Quando tutte le modifiche nel log
+ * sono state riportate sui file il log viene svuotato (checkpoint). All'avvio il log viene riapplicato sopra i file
+ * delle sezioni (vedi replay).
+ * Un record è formato da lunghezza e CRC32 del contenuto, seguiti da DocumentUri della sezione e testo.
+ */
+public class WriteAheadLog {
+    public static final String FILE_NAME = "wal.log";
+
+    // Una sezione da riscrivere su disco
+    private static class Dirty {
+        final Document document;
+        final int section;
+        // riscritture fallite finora
+        int failures;
+
+        Dirty(Document document, int section) {
+            this.document = document;
+            this.section = section;
+        }
+    }
+
+    private static final WriteAheadLog singleton = new WriteAheadLog();
+
+    private final Path path = Paths.get(PermanentStorage.BASE_FOLDER, FILE_NAME);
+    private FileChannel channel;
+
+    // protegge i campi seguenti
+    private final ReentrantLock lock = new ReentrantLock();
+    // segnalata alla fine di ogni batch
+    private final Condition committed = lock.newCondition();
+    // record in attesa del prossimo batch
+    private List<byte[]> pending = new ArrayList<>();
+    // numero di sequenza dell'ultimo record accodato e dell'ultimo reso persistente
+    private long appended, durable;
+    // true mentre un thread sta scrivendo un batch
+    private boolean committing;
+    // l'ultimo batch fallito comprendeva i record fino a failedThrough
+    private long failedThrough;
+    private IOException failure;
+    // record persistenti e record materializzati dall'ultimo checkpoint: quando coincidono il log si può svuotare
+    private long logged, materialized;
+
+    // sezioni da riscrivere. Una sezione può comparire più volte: la riscrittura successiva alla prima non fa niente
+    private final BlockingQueue<Dirty> toMaterialize = new LinkedBlockingQueue<>();
+    // rimette in coda dopo un'attesa le sezioni la cui riscrittura è fallita
+    private final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "wal-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // sezioni in attesa di un nuovo tentativo, contate tra quelle da riscrivere
+    private final AtomicInteger retrying = new AtomicInteger();
+
+    private final LongAdder records = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder checkpoints = new LongAdder();
+    private final LongAdder materializeFailures = new LongAdder();
+
+    private WriteAheadLog() {
+        try {
+            Files.createDirectories(path.getParent());
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            failure = e;
+            failedThrough = Long.MAX_VALUE;
+            e.printStackTrace();
+        }
+        Thread materializer = new Thread(this::materializeLoop, "wal-materializer");
+        materializer.setDaemon(true);
+        materializer.start();
+    }
+
+    public static WriteAheadLog getInstance() {
+        return singleton;
+    }
+
+    // Aggiunge al log il nuovo testo della sezione e ritorna quando il record è persistente
+    public void append(DocumentUri section, byte[] text) throws IOException {
+        byte[] record = encode(section, text);
+        lock.lock();
+        try {
+            pending.add(record);
+            long seq = ++appended;
+            while (durable < seq) {
+                if (seq <= failedThrough && failure != null)
+                    throw new IOException("Write-ahead log failure", failure);
+                if (committing) {
+                    committed.awaitUninterruptibly();
+                    continue;
+                }
+                // questo thread scrive il batch di tutti i record in attesa, compresi quelli degli altri scrittori
+                committing = true;
+                List<byte[]> batch = pending;
+                long batchEnd = appended;
+                pending = new ArrayList<>();
+                lock.unlock();
+                IOException error = null;
+                try {
+                    write(batch);
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    lock.lock();
+                }
+                committing = false;
+                if (error == null) {
+                    durable = batchEnd;
+                    logged += batch.size();
+                    records.add(batch.size());
+                    commits.increment();
+                } else {
+                    failure = error;
+                    failedThrough = batchEnd;
+                    durable = batchEnd;
+                }
+                committed.signalAll();
+            }
+            if (seq <= failedThrough && failure != null)
+                throw new IOException("Write-ahead log failure", failure);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Scrive i record in coda al log e li rende persistenti con un solo fsync. Se la scrittura fallisce il log viene
+    // riportato alla lunghezza precedente, perché un record scritto a metà non nasconda al replay quelli successivi
+    private void write(List<byte[]> batch) throws IOException {
+        int size = 0;
+        for (byte[] record : batch)
+            size += record.length;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] record : batch)
+            buffer.put(record);
+        buffer.flip();
+        long start = channel.size();
+        try {
+            long position = start;
+            while (buffer.hasRemaining())
+                position += channel.write(buffer, position);
+            channel.force(false);
+        } catch (IOException e) {
+            try {
+                channel.truncate(start);
+            } catch (IOException e2) {
+                e.addSuppressed(e2);
+            }
+            throw e;
+        }
+    }
+
+    // La sezione di document, già scritta nel log, verrà riscritta su disco in background
+    public void materializeLater(Document document, int section) {
+        toMaterialize.add(new Dirty(document, section));
+    }
+
+    private void materializeLoop() {
+        while (true) {
+            try {
+                Dirty dirty = toMaterialize.take();
+                try {
+                    dirty.document.materialize(dirty.section);
+                } catch (IOException | RuntimeException e) {
+                    retryLater(dirty, e);
+                    continue;
+                }
+                lock.lock();
+                try {
+                    materialized++;
+                } finally {
+                    lock.unlock();
+                }
+                if (toMaterialize.isEmpty())
+                    checkpoint();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // La sezione resta nel log e viene riscritta di nuovo dopo un'attesa che raddoppia a ogni fallimento, da 100 ms
+    // fino a 30 s. Se il server si ferma prima, verrà riapplicata dal replay al prossimo avvio
+    private void retryLater(Dirty dirty, Exception e) {
+        materializeFailures.increment();
+        long delay = Math.min(30_000, 100L << Math.min(dirty.failures, 9));
+        dirty.failures++;
+        System.err.println("Could not write " + dirty.document.uri + "/" + dirty.section + ": " + e
+                + ". Retrying in " + delay + " ms.");
+        retrying.incrementAndGet();
+        retries.schedule(() -> {
+            retrying.decrementAndGet();
+            toMaterialize.add(dirty);
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Svuota il log se tutti i record persistenti sono stati riportati sui file delle sezioni
+    private void checkpoint() {
+        lock.lock();
+        try {
+            if (committing || !pending.isEmpty() || logged != materialized || channel == null || channel.size() == 0)
+                return;
+            channel.truncate(0);
+            channel.force(false);
+            logged = materialized = 0;
+            checkpoints.increment();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Riapplica le modifiche trovate nel log ai documenti di state, riscrive le sezioni coinvolte e svuota il log.
+    // Un record incompleto o danneggiato in coda al log, lasciato da un crash durante la scrittura, viene scartato
+    public void replay(State state) {
+        if (channel == null)
+            return;
+        int replayed = 0;
+        // sezioni da riscrivere, una volta sola anche se compaiono in più record
+        Map<String, Dirty> touched = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            while (true) {
+                byte[] payload = readRecord(in);
+                if (payload == null)
+                    break;
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                DocumentUri uri = DocumentUri.read(record);
+                byte[] text = BinaryCodec.readBytes(record);
+                Document document = findDocument(state, uri);
+                if (document == null || uri.section == null || uri.section >= document.getSectionsCount()) {
+                    System.err.println("Write-ahead log: skipping record for unknown section " + uri);
+                    continue;
+                }
+                document.restoreSection(uri.section, text);
+                touched.putIfAbsent(uri.toString(), new Dirty(document, uri.section));
+                replayed++;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Dirty dirty : touched.values()) {
+            try {
+                dirty.document.materialize(dirty.section);
+            } catch (IOException e) {
+                // senza checkpoint il log resta intatto e verrà riapplicato al prossimo avvio
+                e.printStackTrace();
+                return;
+            }
+        }
+        if (replayed > 0)
+            System.out.println("Write-ahead log: replayed " + replayed + " records on " + touched.size() + " sections");
+        checkpoint();
+    }
+
+    private static Document findDocument(State state, DocumentUri uri) {
+        User owner = state.getUserOrNull(uri.owner);
+        if (owner == null)
+            return null;
+        try {
+            return owner.getDocument(owner, uri.docName);
+        } catch (DocumentNotFoundException | NotAllowedException e) {
+            return null;
+        }
+    }
+
+    private static byte[] encode(DocumentUri section, byte[] text) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        section.write(out);
+        BinaryCodec.writeBytes(out, text);
+        out.flush();
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream(bytes.length + 8);
+        DataOutputStream recordOut = new DataOutputStream(record);
+        recordOut.writeInt(bytes.length);
+        recordOut.writeInt((int) crc.getValue());
+        recordOut.write(bytes);
+        recordOut.flush();
+        return record.toByteArray();
+    }
+
+    // Legge il contenuto del prossimo record. Restituisce null alla fine del log o se il record è incompleto o danneggiato
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            int crc = in.readInt();
+            if (length < 0 || length > Message.MAX_FRAME_SIZE)
+                return null;
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32 check = new CRC32();
+            check.update(payload);
+            return (int) check.getValue() == crc ? payload : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    public long getRecordCount() {
+        return records.sum();
+    }
+
+    public String toString() {
+        long batches = Math.max(1, commits.sum());
+        return String.format("Write-ahead log: %d records in %d commits (%.1f per fsync), %d sections to materialize, %d checkpoints, %d failed writes.",
+                records.sum(), commits.sum(), records.sum() / (double) batches, toMaterialize.size() + retrying.get(),
+                checkpoints.sum(), materializeFailures.sum());
+    }
+}